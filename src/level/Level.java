@@ -4,14 +4,18 @@ import java.io.File;
 import java.util.*;
 import level.chunk.*;
 import level.player.Player;
+import mods.basemod.LevBlock;
+import mods.basemod.interfaces.BlockHook;
 import static main.Main.LOG;
 import utils.containers.json.JSONObject;
 
 public class Level {
- private final Map<String, JSONObject> map;
+ private final SaveIndex index;
 
 //private final ChunkContainer lch;
  protected final ChunkContainer rch;
+ protected final TickScheduler ticks;
+ protected final UpdateQueue updates;
  protected String name = "";
  protected String dir = "";
  protected String dbfile = "";
@@ -22,8 +26,11 @@ public class Level {
   this.rch = new ChunkContainer();
   this.options = new JSONObject();
   this.player = new Player();
-  this.map = new TreeMap<>(new LevelComparator());
-  updateDir();
+  this.ticks = new TickScheduler(rch);
+  this.updates = new UpdateQueue(this::blockUpdate);
+  this.ticks.addAfter(updates::tick);
+  this.ticks.addAfter(player::tick);
+  this.index = new SaveIndex(main.Main.DIR + "saves/");
  }
 
  public void clear () {
@@ -40,18 +47,26 @@ public class Level {
 
   options.put("name", name);
   options.put("last", new Date().getTime());
+  options.put("seed", main.Main.SERVER.getWorldGen().getSeed());
+  rch.setMeta(options);
   rch.create(dir);
+  options.save(dbfile);
+  index.update(name, options);
  }
 
  public void destroy () {
+  LOG.addD(ticks.toString());
+  options.put("last", new Date().getTime());
   rch.destroy(dir);
   options.save(dbfile);
+  index.update(name, options);
   options.clear();
+  updates.clear();
   clear();
  }
 
  public synchronized void load ( String name ) {
-  if ( !"".equals(name) ) {
+  if ( !"".equals(this.name) ) {
    destroy();
   }
   this.name = name;
@@ -63,7 +78,8 @@ public class Level {
  public void init () {
   LOG.addD("Started init level " + name);
   if ( new File(dbfile).canRead() ) {
-   this.options.load(map.get(name));
+   this.options.load(new JSONObject(dbfile));
+   this.rch.setMeta(options);
    this.rch.load(dir);
 
    LOG.addD("Ended init level " + name);
@@ -73,31 +89,37 @@ public class Level {
   }
  }
 
- public Collection<JSONObject> getMap () {
-  return this.map.values();
+ public void tick () {
+  if ( !"".equals(name) ) {
+   ticks.tick();
+  }
  }
 
- private void updateDir () {
-  File dir1 = new File(main.Main.DIR + "saves/");
-  for ( File f : dir1.listFiles() ) {
-   if ( new File(main.Main.DIR + "saves/" + f.getName() + "/level.db").canRead() ) {
-    this.map.put(f.getName(), new JSONObject(main.Main.DIR + "saves/" + f.getName() + "/level.db"));
-   } else {
-    main.Main.LOG.addE("Level " + f.getName() + " does not have level.json");
-   }
-  }
+ public TickScheduler getTicks () {
+  return ticks;
  }
 
- private final class LevelComparator implements Comparator {
-  @Override
-  public int compare ( Object o1, Object o2 ) {
-   if ( o1 instanceof JSONObject && o2 instanceof JSONObject ) {
-    JSONObject t1 = (JSONObject) o1;
-    JSONObject t2 = (JSONObject) o2;
-    return Long.compare(t2.getLong("last"), t1.getLong("last"));
-   }
-   return 0;
+ public UpdateQueue getUpdates () {
+  return updates;
+ }
+
+ private void blockUpdate ( int x, int y, int z ) {
+  Chunk c = rch.getLoadedChunk(x >> 4, y >> 4, z >> 8);
+  if ( c == null ) {
+   return;
+  }
+  LevBlock b = c.getBlock(x & 15, y & 15, z & 255);
+  if ( b instanceof BlockHook ) {
+   ((BlockHook) b).blockUpdate(x, y, z);
   }
  }
 
+ public Collection<JSONObject> getMap () {
+  return index.list();
+ }
+
+ public SaveIndex getIndex () {
+  return index;
+ }
+
 }
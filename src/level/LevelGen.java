@@ -1,22 +1,37 @@
 package level;
 
 import java.util.*;
+import java.util.concurrent.*;
 import level.chunk.*;
+import static main.Main.LOG;
 import mods.basemod.containers.Server;
 import utils.containers.pos.ChunkPos;
 
 public class LevelGen {
+ private final static int BATCH = 4;
+ private final static int OCTAVES = 4;
+ private final static double SCALE = 1.0 / 128;
+ private final static ThreadLocal<float[]> HEIGHTS = ThreadLocal.withInitial(() -> new float[16 * 16]);
+
  private final Random random;
+ private final NoiseMap noise;
  private boolean sseed;
- private Chunk[][] ch;
+ private long seed;
+ private int threads = Runtime.getRuntime().availableProcessors();
+ private volatile double rate;// chunks per second of the last run
+ private volatile long total;
 
  public LevelGen ( long seed ) {
   this.random = new Random(seed);
+  this.seed = seed;
+  this.noise = new NoiseMap(seed, OCTAVES);
   sseed = true;
  }
 
  public LevelGen () {
   this.random = new Random();
+  this.seed = random.nextLong();
+  this.noise = new NoiseMap(seed, OCTAVES);
   sseed = false;
  }
 
@@ -43,35 +58,127 @@ public class LevelGen {
 //  return t;
 // }
  public void genFirst ( ChunkContainer cont, ChunkPos center ) {
-  ch = new Chunk[17][17];
-
+  List<ChunkPos> t = new ArrayList<>();
   for ( int x = -8 ; x < 8 ; x++ ) {
    for ( int y = -8 ; y < 8 ; y++ ) {
-    gen(cont.getChunk(new ChunkPos(center.gX() + x, center.gY(), 0)));
-    System.out.println("Chunk " + x + " " + y + " generated");
+    t.add(new ChunkPos(center.gX() + x, center.gY() + y, 0));
    }
   }
+  gen(cont, t);
+ }
+
+ public void gen ( ChunkContainer cont, List<ChunkPos> list ) {
+  long start = System.nanoTime();
+  ForkJoinPool pool = new ForkJoinPool(threads);
+  Chunk out[] = new Chunk[list.size()];
+  try {
+   pool.invoke(new GenTask(cont, list, out, 0, list.size()));
+   pool.submit(() -> {
+    cont.getLight().light(Arrays.asList(out));
+   }).join();
+  } finally {
+   for ( Chunk c : out ) {
+    if ( c != null ) {
+     c.setGenerating(false);
+    }
+   }
+   pool.shutdown();
+  }
+  long ns = System.nanoTime() - start;
+  rate = list.size() * 1e9 / Math.max(ns, 1);
+  total += list.size();
+  LOG.addD("Generated " + list.size() + " chunks on " + threads + " threads, " + (long) rate + " chunks/s");
+ }
 
+ public void gen ( Chunk chun ) {
+  gen(chun, new Random(chunkSeed(chun.getId().gX(), chun.getId().gY(), chun.getId().gZ())));
  }
 
- private void gen ( Chunk chun ) {
+ private void gen ( Chunk chun, Random rnd ) {
+  float h[] = HEIGHTS.get();
+  noise.fill(h, chun.getId().gX() * 16, chun.getId().gY() * 16, 16, 16, SCALE);
   for ( int x1 = 0 ; x1 < 16 ; x1++ ) {
    for ( int y1 = 0 ; y1 < 16 ; y1++ ) {
-    chun.setBlock(x1, y1, 64, Server.instatnceLevBlock());
-    chun.setBlock(x1, y1, 65, Server.instatnceLevBlock());
+    int top = height(h[x1 + y1 * 16]);
+    for ( int z = 0 ; z <= top ; z++ ) {
+     chun.setBlock(x1, y1, z, Server.instatnceLevBlock());
+    }
    }
   }
+  for ( int i = rnd.nextInt(4) ; i > 0 ; i-- ) {
+   int x1 = rnd.nextInt(16);
+   int y1 = rnd.nextInt(16);
+   chun.setBlock(x1, y1, height(h[x1 + y1 * 16]) + 1, Server.instatnceLevBlock());
+  }
+ }
+
+ private static int height ( float n ) {
+  return Math.max(1, Math.min(250, 64 + (int) (n * 24)));
+ }
+
+ public long chunkSeed ( int x, int y, int z ) {
+  long t = seed ^ (x * 0x9E3779B97F4A7C15L) ^ (y * 0xC2B2AE3D27D4EB4FL) ^ (z * 0x165667B19E3779F9L);
+  t = (t ^ (t >>> 30)) * 0xBF58476D1CE4E5B9L;
+  t = (t ^ (t >>> 27)) * 0x94D049BB133111EBL;
+  return t ^ (t >>> 31);
+ }
+
+ public void setThreads ( int threads ) {
+  this.threads = Math.max(1, threads);
+ }
+
+ public double getRate () {
+  return rate;
+ }
+
+ public long getGenerated () {
+  return total;
  }
 
  public void setSeed ( long seed ) {
   this.random.setSeed(seed);
+  this.noise.setSeed(seed);
+  this.seed = seed;
   sseed = true;
  }
 
+ public long getSeed () {
+  return seed;
+ }
+
  public boolean isSeed () {
   return sseed;
  }
 
+ private final class GenTask extends RecursiveAction {
+  private final ChunkContainer cont;
+  private final List<ChunkPos> list;
+  private final Chunk out[];
+  private final int from, to;
+
+  GenTask ( ChunkContainer cont, List<ChunkPos> list, Chunk out[], int from, int to ) {
+   this.cont = cont;
+   this.list = list;
+   this.out = out;
+   this.from = from;
+   this.to = to;
+  }
+
+  @Override
+  protected void compute () {
+   if ( to - from <= BATCH ) {
+    for ( int i = from ; i < to ; i++ ) {
+     out[i] = cont.getChunkForWrite(list.get(i));
+     out[i].setGenerating(true);
+     gen(out[i]);
+    }
+   } else {
+    int mid = (from + to) >>> 1;
+    invokeAll(new GenTask(cont, list, out, from, mid), new GenTask(cont, list, out, mid, to));
+   }
+  }
+ }
+
 // public byte[] generateMap () {
 //  int w = this.width;
 //  int h = this.height;
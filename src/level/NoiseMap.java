@@ -1,81 +1,127 @@
-package level;
-
-import java.util.Random;
-
-public class NoiseMap {
-
- Random random = new Random();
- int seed = this.random.nextInt();
- int levels = 0;
- int fuzz = 16;
-
- public NoiseMap ( int levels ) {
-  this.levels = levels;
- }
-
- public int[] read ( int width, int height ) {
-  Random random = new Random();
-
-  int[] tmp = new int[width * height];
-
-  int level = this.levels;
-
-  int step = width >> level;
-  for ( int y = 0 ; y < height ; y += step ) {
-   for ( int x = 0 ; x < width ; x += step ) {
-    tmp[(x + y * width)] = ((random.nextInt(256) - 128) * this.fuzz);
-   }
-
-  }
-
-  for ( step = width >> level ; step > 1 ; step /= 2 ) {
-   int val = 256 * (step << level);
-   int ss = step / 2;
-
-   for ( int y = 0 ; y < height ; y += step ) {
-    for ( int x = 0 ; x < width ; x += step ) {
-     int ul = tmp[((x + 0) % width + (y + 0) % height * width)];
-     int ur = tmp[((x + step) % width + (y + 0) % height * width)];
-     int dl = tmp[((x + 0) % width + (y + step) % height * width)];
-     int dr = tmp[((x + step) % width + (y + step) % height * width)];
-
-     int m = (ul + dl + ur + dr) / 4 + random.nextInt(val * 2) - val;
-
-     tmp[(x + ss + (y + ss) * width)] = m;
-    }
-   }
-
-   for ( int y = 0 ; y < height ; y += step ) {
-    for ( int x = 0 ; x < width ; x += step ) {
-     int c = tmp[(x + y * width)];
-     int r = tmp[((x + step) % width + y * width)];
-     int d = tmp[(x + (y + step) % width * width)];
-
-     int mu = tmp[((x + ss & width - 1) + (y + ss - step & height - 1) * width)];
-     int ml = tmp[((x + ss - step & width - 1) + (y + ss & height - 1) * width)];
-     int m = tmp[((x + ss) % width + (y + ss) % height * width)];
-
-     int u = (c + r + m + mu) / 4 + random.nextInt(val * 2) - val;
-     int l = (c + d + m + ml) / 4 + random.nextInt(val * 2) - val;
-
-     tmp[(x + ss + y * width)] = u;
-     tmp[(x + (y + ss) * width)] = l;
-    }
-
-   }
-
-  }
-
-  int[] result = new int[width * height];
-  for ( int y = 0 ; y < height ; y++ ) {
-   for ( int x = 0 ; x < width ; x++ ) {
-    result[(x + y * width)] = (tmp[(x % width + y % height * width)] / 512 + 128);
-   }
-  }
-  return result;
- }
-}
-
-/*
- * Location: C:\Users\Илья\AppData\Roaming\.minecraft\versions\c0.0.11a\c0.0.11a.jar Qualified Name: minecraft.level.NoiseMap JD-Core Version: 0.6.2
- */
+package level;
+
+import java.util.Random;
+
+public class NoiseMap {
+ private final static double F2 = 0.5 * (Math.sqrt(3.0) - 1.0);
+ private final static double G2 = (3.0 - Math.sqrt(3.0)) / 6.0;
+ private final static double GX[] = { 1, -1, 1, -1, 1, -1, 0, 0 };
+ private final static double GY[] = { 1, 1, -1, -1, 0, 0, 1, -1 };
+
+ private final short perm[] = new short[512];
+ private final int levels;
+ private double persistence = 0.5;
+ private double lacunarity = 2.0;
+
+ public NoiseMap ( int levels ) {
+  this(new Random().nextLong(), levels);
+ }
+
+ public NoiseMap ( long seed, int levels ) {
+  this.levels = Math.max(1, levels);
+  setSeed(seed);
+ }
+
+ public final void setSeed ( long seed ) {
+  Random r = new Random(seed);
+  short t[] = new short[256];
+  for ( int i = 0 ; i < 256 ; i++ ) {
+   t[i] = (short) i;
+  }
+  for ( int i = 255 ; i > 0 ; i-- ) {
+   int j = r.nextInt(i + 1);
+   short s = t[i];
+   t[i] = t[j];
+   t[j] = s;
+  }
+  for ( int i = 0 ; i < 512 ; i++ ) {
+   perm[i] = t[i & 255];
+  }
+ }
+
+ public void setOctaves ( double persistence, double lacunarity ) {
+  this.persistence = persistence;
+  this.lacunarity = lacunarity;
+ }
+
+ // Single octave simplex noise in [-1, 1]
+ public double noise ( double x, double y ) {
+  double s = (x + y) * F2;
+  int i = floor(x + s);
+  int j = floor(y + s);
+  double t = (i + j) * G2;
+  double x0 = x - (i - t);
+  double y0 = y - (j - t);
+  int i1 = x0 > y0 ? 1 : 0;
+  int j1 = 1 - i1;
+  double x1 = x0 - i1 + G2;
+  double y1 = y0 - j1 + G2;
+  double x2 = x0 - 1.0 + 2.0 * G2;
+  double y2 = y0 - 1.0 + 2.0 * G2;
+  int ii = i & 255;
+  int jj = j & 255;
+
+  double n = 0;
+  double t0 = 0.5 - x0 * x0 - y0 * y0;
+  if ( t0 > 0 ) {
+   int g = perm[ii + perm[jj]] & 7;
+   t0 *= t0;
+   n += t0 * t0 * (GX[g] * x0 + GY[g] * y0);
+  }
+  double t1 = 0.5 - x1 * x1 - y1 * y1;
+  if ( t1 > 0 ) {
+   int g = perm[ii + i1 + perm[jj + j1]] & 7;
+   t1 *= t1;
+   n += t1 * t1 * (GX[g] * x1 + GY[g] * y1);
+  }
+  double t2 = 0.5 - x2 * x2 - y2 * y2;
+  if ( t2 > 0 ) {
+   int g = perm[ii + 1 + perm[jj + 1]] & 7;
+   t2 *= t2;
+   n += t2 * t2 * (GX[g] * x2 + GY[g] * y2);
+  }
+  return 70.0 * n;
+ }
+
+ // Fractal noise of window [x0, x0 + w) x [y0, y0 + h) into out[x + y * w], result in [-1, 1]
+ public void fill ( float out[], int x0, int y0, int w, int h, double scale ) {
+  int n = w * h;
+  for ( int i = 0 ; i < n ; i++ ) {
+   out[i] = 0;
+  }
+  double amp = 1;
+  double freq = scale;
+  double norm = 0;
+  for ( int o = 0 ; o < levels ; o++ ) {
+   for ( int y = 0 ; y < h ; y++ ) {
+    double ny = (y0 + y) * freq;
+    int row = y * w;
+    for ( int x = 0 ; x < w ; x++ ) {
+     out[row + x] += (float) (amp * noise((x0 + x) * freq, ny));
+    }
+   }
+   norm += amp;
+   amp *= persistence;
+   freq *= lacunarity;
+  }
+  float k = (float) (1 / norm);
+  for ( int i = 0 ; i < n ; i++ ) {
+   out[i] *= k;
+  }
+ }
+
+ public int[] read ( int width, int height ) {
+  float t[] = new float[width * height];
+  fill(t, 0, 0, width, height, 1.0 / width);
+  int result[] = new int[width * height];
+  for ( int i = 0 ; i < result.length ; i++ ) {
+   result[i] = (int) (t[i] * 127) + 128;
+  }
+  return result;
+ }
+
+ private static int floor ( double x ) {
+  int t = (int) x;
+  return x < t ? t - 1 : t;
+ }
+}
@@ -0,0 +1,139 @@
+package level;
+
+import java.io.*;
+import java.util.*;
+import static main.Main.LOG;
+import utils.AtomicFile;
+import utils.containers.json.JSONObject;
+
+// saves/index.json: name, last played, size and seed per world, so listing worlds reads one file.
+// Size is dropped when a world is saved and measured again the next time it is listed.
+public final class SaveIndex {
+ public final static String FILE = "index.json";
+
+ private final File dir;
+ private final Map<String, JSONObject> worlds = new HashMap<>();
+ private boolean loaded;
+
+ public SaveIndex ( String dir ) {
+  this.dir = new File(dir);
+ }
+
+ // Newest first
+ public synchronized List<JSONObject> list () {
+  load();
+  boolean changed = false;
+  for ( Map.Entry<String, JSONObject> e : worlds.entrySet() ) {
+   changed |= measure(e.getKey(), e.getValue());
+  }
+  if ( changed ) {
+   save();
+  }
+  List<JSONObject> t = new ArrayList<>(worlds.values());
+  t.sort(( a, b ) -> Long.compare(b.optLong("last"), a.optLong("last")));
+  return t;
+ }
+
+ public synchronized JSONObject get ( String name ) {
+  load();
+  JSONObject t = worlds.get(name);
+  if ( t != null && measure(name, t) ) {
+   save();
+  }
+  return t;
+ }
+
+ public synchronized void update ( String name, JSONObject options ) {
+  load();
+  worlds.put(name, entry(name, options));
+  save();
+ }
+
+ public synchronized void remove ( String name ) {
+  load();
+  if ( worlds.remove(name) != null ) {
+   save();
+  }
+ }
+
+ private void load () {
+  if ( loaded ) {
+   return;
+  }
+  loaded = true;
+  File f = new File(dir, FILE);
+  if ( f.canRead() ) {
+   try {
+    JSONObject o = new JSONObject(f.getPath()).getJSONObject("worlds");
+    for ( String name : o.keySet() ) {
+     worlds.put(name, o.getJSONObject(name));
+    }
+   } catch ( Exception ex ) {
+    LOG.addE(ex);
+    worlds.clear();
+   }
+  }
+  // One directory listing reconciles the index; only worlds it doesn't know get their level.json parsed
+  boolean changed = !f.canRead();
+  String t[] = dir.list(( d, name ) -> new File(d, name).isDirectory());
+  Set<String> names = new HashSet<>(t == null ? Collections.<String>emptyList() : Arrays.asList(t));
+  changed |= worlds.keySet().retainAll(names);
+  for ( String name : names ) {
+   if ( !worlds.containsKey(name) ) {
+    File db = new File(dir, name + "/level.json");
+    if ( db.canRead() ) {
+     worlds.put(name, entry(name, new JSONObject(db.getPath())));
+     changed = true;
+    } else {
+     LOG.addE("Level " + name + " does not have level.json");
+    }
+   }
+  }
+  if ( changed ) {
+   save();
+  }
+ }
+
+ private JSONObject entry ( String name, JSONObject options ) {
+  JSONObject t = new JSONObject();
+  t.put("name", name);
+  t.put("last", options.optLong("last"));
+  t.put("seed", options.optLong("seed"));
+  return t;
+ }
+
+ private boolean measure ( String name, JSONObject w ) {
+  if ( w.has("size") ) {
+   return false;
+  }
+  w.put("size", size(new File(dir, name)));
+  return true;
+ }
+
+ private void save () {
+  JSONObject o = new JSONObject();
+  JSONObject w = new JSONObject();
+  for ( Map.Entry<String, JSONObject> e : worlds.entrySet() ) {
+   w.put(e.getKey(), e.getValue());
+  }
+  o.put("worlds", w);
+  try {
+   dir.mkdirs();
+   AtomicFile.write(new File(dir, FILE), o.toString().getBytes("UTF-8"));
+  } catch ( IOException ex ) {
+   LOG.addE(ex);
+  }
+ }
+
+ private static long size ( File f ) {
+  File t[] = f.listFiles();
+  if ( t == null ) {
+   return f.length();
+  }
+  long n = 0;
+  for ( File c : t ) {
+   n += size(c);
+  }
+  return n;
+ }
+}
@@ -0,0 +1,162 @@
+package level;
+
+import java.util.*;
+import java.util.concurrent.*;
+import level.chunk.*;
+import static main.Main.LOG;
+import utils.containers.map.LongMap;
+import utils.containers.pos.RegionPos;
+
+public final class TickScheduler {
+ public final static int PERIOD = 50;// ms
+ public final static int PHASES = 4;// 2x2 region checkerboard
+
+ private final ChunkContainer cont;
+ private final ForkJoinPool pool;
+ private final Queue<Runnable> deferred = new ConcurrentLinkedQueue<>();
+ private final List<Runnable> after = new CopyOnWriteArrayList<>();
+ private LongMap<Long> cost = new LongMap<>();// region key -> ns, last tick
+ private volatile long ticks;
+ private volatile long lastTime;
+ private volatile long maxTime;
+ private volatile long totalTime;
+ private volatile long slowRegion;
+ private volatile long slowTime;
+
+ public TickScheduler ( ChunkContainer cont ) {
+  this(cont, Runtime.getRuntime().availableProcessors());
+ }
+
+ public TickScheduler ( ChunkContainer cont, int threads ) {
+  this.cont = cont;
+  this.pool = new ForkJoinPool(Math.max(1, threads));
+ }
+
+ // Work that reaches beyond the neighbouring regions, applied after all phases
+ public void defer ( Runnable r ) {
+  deferred.add(r);
+ }
+
+ // Runs on the ticking thread after the barrier, e.g. players
+ public void addAfter ( Runnable r ) {
+  after.add(r);
+ }
+
+ public synchronized void tick () {
+  long start = System.nanoTime();
+  List<Region> t = cont.getRegions();
+  List<List<Region>> phases = new ArrayList<>(PHASES);
+  for ( int i = 0 ; i < PHASES ; i++ ) {
+   phases.add(new ArrayList<>());
+  }
+  for ( Region r : t ) {
+   phases.get((r.getPos().gX() & 1) | ((r.getPos().gY() & 1) << 1)).add(r);
+  }
+
+  // Regions of one phase are two apart, so a chunk may touch its direct neighbours safely
+  long ns[] = new long[t.size()];
+  Map<Region, Integer> idx = new IdentityHashMap<>();
+  for ( int i = 0 ; i < t.size() ; i++ ) {
+   idx.put(t.get(i), i);
+  }
+  for ( List<Region> phase : phases ) {
+   if ( phase.isEmpty() ) {
+    continue;
+   }
+   pool.submit(() -> {
+    phase.parallelStream().
+       forEach(( r ) -> {
+        ns[idx.get(r)] = tick(r);
+       });
+   }).join();
+  }
+
+  for ( Runnable r ; (r = deferred.poll()) != null ; ) {
+   try {
+    r.run();
+   } catch ( Exception ex ) {
+    LOG.addE(ex);
+   }
+  }
+  after.stream().
+     forEach(( r ) -> {
+      try {
+       r.run();
+      } catch ( Exception ex ) {
+       LOG.addE(ex);
+      }
+     });
+
+  LongMap<Long> c = new LongMap<>();
+  long sr = 0, st = 0;
+  for ( int i = 0 ; i < t.size() ; i++ ) {
+   c.put(t.get(i).key(), ns[i]);
+   if ( ns[i] > st ) {
+    st = ns[i];
+    sr = t.get(i).key();
+   }
+  }
+  cost = c;
+  slowRegion = sr;
+  slowTime = st;
+  lastTime = System.nanoTime() - start;
+  maxTime = Math.max(maxTime, lastTime);
+  totalTime += lastTime;
+  ticks++;
+  if ( lastTime > PERIOD * 1000000L ) {
+   LOG.addW(String.format("Tick %d took %.2f ms over %d regions", ticks, lastTime / 1e6, t.size()));
+  }
+ }
+
+ private long tick ( Region r ) {
+  long start = System.nanoTime();
+  try {
+   for ( int i = 0 ; i < RegionFile.CHUNKS ; i++ ) {
+    Chunk c = r.getChunk(i);
+    if ( c != null ) {
+     c.tick();
+     c.tickW();
+    }
+   }
+  } catch ( Exception ex ) {
+   LOG.addE(ex);
+  }
+  return System.nanoTime() - start;
+ }
+
+ public long getTicks () {
+  return ticks;
+ }
+
+ public double getLastMs () {
+  return lastTime / 1e6;
+ }
+
+ public double getMaxMs () {
+  return maxTime / 1e6;
+ }
+
+ public double getAvgMs () {
+  return ticks == 0 ? 0 : totalTime / 1e6 / ticks;
+ }
+
+ public double getRegionMs ( long key ) {
+  Long t = cost.get(key);
+  return t == null ? 0 : t / 1e6;
+ }
+
+ public long getSlowRegion () {
+  return slowRegion;
+ }
+
+ public void shutdown () {
+  pool.shutdown();
+ }
+
+ @Override
+ public String toString () {
+  RegionPos r = RegionPos.of(slowRegion);
+  return String.format("Tick %d: last %.2f ms, avg %.2f ms, max %.2f ms, slowest region %d %d (%.2f ms) on %d threads",
+                       ticks, getLastMs(), getAvgMs(), getMaxMs(), r.gX(), r.gY(), slowTime / 1e6, pool.getParallelism());
+ }
+}
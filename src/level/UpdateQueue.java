@@ -0,0 +1,279 @@
+package level;
+
+import java.util.*;
+import static main.Main.LOG;
+import utils.containers.map.LongMap;
+import utils.containers.pos.Position;
+
+public final class UpdateQueue {
+ public final static int MAX_PER_TICK = 65536;
+ private final static int POS_BITS = 25;// 7 x, 7 y, 11 z inside a region
+ private final static long POS_MASK = (1L << POS_BITS) - 1;
+
+ private final LongMap<Bucket> buckets = new LongMap<>();// region key -> bucket
+ private final Handler handler;
+ private volatile long tick;
+ private int maxPerTick;
+ private int last;// updates run last tick
+ private int size;
+
+ public UpdateQueue ( Handler handler ) {
+  this(handler, MAX_PER_TICK);
+ }
+
+ public UpdateQueue ( Handler handler, int maxPerTick ) {
+  this.handler = handler;
+  this.maxPerTick = maxPerTick;
+ }
+
+ public void setMaxPerTick ( int maxPerTick ) {
+  this.maxPerTick = maxPerTick;
+ }
+
+ public long getTick () {
+  return tick;
+ }
+
+ // Same position keeps the earliest due tick
+ public boolean schedule ( int x, int y, int z, int delay ) {
+  if ( z < 0 || z >= 2048 ) {
+   return false;
+  }
+  long key = Position.key(x >> 7, y >> 7, 0);
+  Bucket b;
+  synchronized ( buckets ) {
+   b = buckets.get(key);
+   if ( b == null ) {
+    b = new Bucket(x >> 7, y >> 7);
+    buckets.put(key, b);
+   }
+  }
+  int pos = (x & 127) | ((y & 127) << 7) | (z << 14);
+  return b.add(tick + Math.max(1, delay), pos);
+ }
+
+ public boolean isScheduled ( int x, int y, int z ) {
+  Bucket b;
+  synchronized ( buckets ) {
+   b = buckets.get(Position.key(x >> 7, y >> 7, 0));
+  }
+  return b != null && b.due((x & 127) | ((y & 127) << 7) | (z << 14)) >= 0;
+ }
+
+ public int size () {
+  int t = 0;
+  synchronized ( buckets ) {
+   for ( Bucket b : buckets.values() ) {
+    t += b.size();
+   }
+  }
+  return t;
+ }
+
+ public int getLast () {
+  return last;
+ }
+
+ // Runs due updates in tick order; the rest stays queued for the next tick
+ public void tick () {
+  long now = ++tick;
+  PriorityQueue<Bucket> q = new PriorityQueue<>((a, b) -> Long.compare(a.peek(), b.peek()));
+  synchronized ( buckets ) {
+   for ( Bucket b : buckets.values() ) {
+    if ( b.size() > 0 && (b.peek() >>> POS_BITS) <= now ) {
+     q.add(b);
+    }
+   }
+  }
+  int n = 0;
+  while ( !q.isEmpty() && n < maxPerTick ) {
+   Bucket b = q.poll();
+   long e = b.poll();
+   if ( e >= 0 ) {
+    int pos = (int) (e & POS_MASK);
+    try {
+     handler.update((b.x << 7) | (pos & 127), (b.y << 7) | ((pos >>> 7) & 127), pos >>> 14);
+    } catch ( Exception ex ) {
+     LOG.addE(ex);
+    }
+    n++;
+   }
+   if ( b.size() > 0 && (b.peek() >>> POS_BITS) <= now ) {
+    q.add(b);
+   }
+  }
+  last = n;
+  if ( !q.isEmpty() ) {
+   LOG.addD("Block updates capped at " + maxPerTick + ", rest carried over");
+  }
+  synchronized ( buckets ) {
+   for ( long k : buckets.keys() ) {
+    if ( buckets.get(k).size() == 0 ) {
+     buckets.remove(k);
+    }
+   }
+  }
+ }
+
+ public void clear () {
+  synchronized ( buckets ) {
+   buckets.clear();
+  }
+ }
+
+ public interface Handler {
+
+  public void update ( int x, int y, int z );
+ }
+
+ // Binary min-heap of (due << POS_BITS | pos) plus a pos -> due table for dedup
+ private static final class Bucket {
+  private final int x, y;
+  private long heap[] = new long[16];
+  private int n;
+  private int keys[] = new int[16];// pos + 1, 0 - free
+  private long dues[] = new long[16];
+  private int count;
+
+  Bucket ( int x, int y ) {
+   this.x = x;
+   this.y = y;
+  }
+
+  synchronized int size () {
+   return count;
+  }
+
+  synchronized long peek () {
+   while ( n > 0 ) {
+    long e = heap[0];
+    if ( due((int) (e & POS_MASK)) == e >>> POS_BITS ) {
+     return e;
+    }
+    pop();// stale, rescheduled earlier
+   }
+   return Long.MAX_VALUE;
+  }
+
+  synchronized long poll () {
+   long e = peek();
+   if ( e == Long.MAX_VALUE ) {
+    return -1;
+   }
+   pop();
+   remove((int) (e & POS_MASK));
+   return e;
+  }
+
+  synchronized boolean add ( long due, int pos ) {
+   long t = due(pos);
+   if ( t >= 0 && t <= due ) {
+    return false;
+   }
+   if ( t < 0 ) {
+    count++;
+    if ( count * 2 > keys.length ) {
+     rehash(keys.length * 2);
+    }
+   }
+   put(pos, due);
+   push((due << POS_BITS) | pos);
+   return true;
+  }
+
+  synchronized long due ( int pos ) {
+   int m = keys.length - 1;
+   for ( int i = mix(pos) & m ; keys[i] != 0 ; i = (i + 1) & m ) {
+    if ( keys[i] == pos + 1 ) {
+     return dues[i];
+    }
+   }
+   return -1;
+  }
+
+  private void put ( int pos, long due ) {
+   int m = keys.length - 1;
+   int i = mix(pos) & m;
+   while ( keys[i] != 0 && keys[i] != pos + 1 ) {
+    i = (i + 1) & m;
+   }
+   keys[i] = pos + 1;
+   dues[i] = due;
+  }
+
+  private void remove ( int pos ) {
+   int m = keys.length - 1;
+   int i = mix(pos) & m;
+   while ( keys[i] != pos + 1 ) {
+    if ( keys[i] == 0 ) {
+     return;
+    }
+    i = (i + 1) & m;
+   }
+   keys[i] = 0;
+   count--;
+   for ( int j = (i + 1) & m ; keys[j] != 0 ; j = (j + 1) & m ) {// backward shift
+    int h = mix(keys[j] - 1) & m;
+    if ( ((j - h) & m) >= ((j - i) & m) ) {
+     keys[i] = keys[j];
+     dues[i] = dues[j];
+     keys[j] = 0;
+     i = j;
+    }
+   }
+  }
+
+  private void rehash ( int cap ) {
+   int ok[] = keys;
+   long od[] = dues;
+   keys = new int[cap];
+   dues = new long[cap];
+   for ( int i = 0 ; i < ok.length ; i++ ) {
+    if ( ok[i] != 0 ) {
+     put(ok[i] - 1, od[i]);
+    }
+   }
+  }
+
+  private void push ( long e ) {
+   if ( n == heap.length ) {
+    heap = Arrays.copyOf(heap, n * 2);
+   }
+   int i = n++;
+   while ( i > 0 ) {
+    int p = (i - 1) >>> 1;
+    if ( heap[p] <= e ) {
+     break;
+    }
+    heap[i] = heap[p];
+    i = p;
+   }
+   heap[i] = e;
+  }
+
+  private void pop () {
+   long e = heap[--n];
+   int i = 0;
+   while ( true ) {
+    int c = 2 * i + 1;
+    if ( c >= n ) {
+     break;
+    }
+    if ( c + 1 < n && heap[c + 1] < heap[c] ) {
+     c++;
+    }
+    if ( e <= heap[c] ) {
+     break;
+    }
+    heap[i] = heap[c];
+    i = c;
+   }
+   heap[i] = e;
+  }
+
+  private static int mix ( int k ) {
+   k *= 0x9E3779B9;
+   return k ^ (k >>> 16);
+  }
+ }
+}
@@ -0,0 +1,193 @@
+package level.chunk;
+
+import java.io.*;
+import java.util.*;
+import mods.basemod.LevBlock;
+
+public final class BlockStorage implements Serializable {
+ private static final long serialVersionUID = 8986553381497636733L;
+ private static final ObjectStreamField serialPersistentFields[] = {
+  new ObjectStreamField("size", int.class),
+  new ObjectStreamField("palette", List.class),
+  new ObjectStreamField("bits", int.class),
+  new ObjectStreamField("perLong", int.class),
+  new ObjectStreamField("mask", long.class),
+  new ObjectStreamField("data", long[].class)
+ };
+
+ private int size;// set by readObject
+ // Readers take one State and use only that, so a resize never mixes an old layout with new data
+ private transient volatile State state;
+
+ private static final class State {
+  final LevBlock palette[];// 0 - air
+  final int bits;
+  final int perLong;
+  final long mask;
+  final long data[];
+
+  State ( LevBlock palette[], int bits, long data[] ) {
+   this.palette = palette;
+   this.bits = bits;
+   this.perLong = bits == 0 ? 0 : 64 / bits;
+   this.mask = (1L << bits) - 1;
+   this.data = data;
+  }
+
+  LevBlock get ( int i ) {
+   if ( bits == 0 ) {
+    return palette[0];
+   }
+   return palette[(int) ((data[i / perLong] >>> ((i % perLong) * bits)) & mask)];
+  }
+ }
+
+ public BlockStorage ( int size ) {
+  this.size = size;
+  this.state = new State(new LevBlock[]{ null }, 0, null);
+ }
+
+ public BlockStorage ( BlockStorage o ) {
+  State t = o.state;
+  this.size = o.size;
+  this.state = new State(t.palette, t.bits, t.data == null ? null : t.data.clone());
+ }
+
+ public int size () {
+  return size;
+ }
+
+ public int getBits () {
+  return state.bits;
+ }
+
+ public int getPaletteSize () {
+  return state.palette.length;
+ }
+
+ public boolean isEmpty () {
+  return state.palette.length == 1;
+ }
+
+ public LevBlock get ( int i ) {
+  return state.get(i);
+ }
+
+ // Single writer, the owning chunk's lock; data words are updated in place, layout changes publish a new State
+ public LevBlock set ( int i, LevBlock block ) {
+  State t = state;
+  int id = idOf(t.palette, block);
+  if ( id < 0 ) {
+   id = t.palette.length;
+   LevBlock p[] = Arrays.copyOf(t.palette, id + 1);
+   p[id] = block;
+   t = p.length > (1 << t.bits) ? resize(t, p, t.bits + 1) : new State(p, t.bits, t.data);
+   state = t;
+  }
+  if ( t.bits == 0 ) {
+   return t.palette[0];
+  }
+  int w = i / t.perLong;
+  int sh = (i % t.perLong) * t.bits;
+  long o = t.data[w];
+  t.data[w] = (o & ~(t.mask << sh)) | ((long) id << sh);
+  return t.palette[(int) ((o >>> sh) & t.mask)];
+ }
+
+ public void getAll ( LevBlock out[] ) {
+  getAll(out, 0);
+ }
+
+ public void getAll ( LevBlock out[], int off ) {
+  State t = state;
+  if ( t.bits == 0 ) {
+   Arrays.fill(out, off, off + size, t.palette[0]);
+   return;
+  }
+  int i = 0;
+  for ( int w = 0 ; w < t.data.length && i < size ; w++ ) {
+   long v = t.data[w];
+   for ( int k = 0 ; k < t.perLong && i < size ; k++, i++ ) {
+    out[off + i] = t.palette[(int) (v & t.mask)];
+    v >>>= t.bits;
+   }
+  }
+ }
+
+ public void forEach ( Visitor v ) {
+  State t = state;
+  if ( t.bits == 0 ) {
+   return;
+  }
+  int i = 0;
+  for ( int w = 0 ; w < t.data.length && i < size ; w++ ) {
+   long d = t.data[w];
+   if ( d == 0 ) {
+    i += t.perLong;
+    continue;
+   }
+   for ( int k = 0 ; k < t.perLong && i < size ; k++, i++ ) {
+    int id = (int) (d & t.mask);
+    if ( id != 0 ) {
+     v.visit(i, t.palette[id]);
+    }
+    d >>>= t.bits;
+   }
+  }
+ }
+
+ public long getMemory () {
+  State t = state;
+  return 32 + t.palette.length * 8 + (t.data == null ? 0 : t.data.length * 8 + 16);
+ }
+
+ private static int idOf ( LevBlock palette[], LevBlock block ) {
+  for ( int i = 0 ; i < palette.length ; i++ ) {
+   if ( palette[i] == block ) {
+    return i;
+   }
+  }
+  return -1;
+ }
+
+ private State resize ( State t, LevBlock palette[], int nbits ) {
+  int nper = 64 / nbits;
+  long ndata[] = new long[(size + nper - 1) / nper];
+  if ( t.bits != 0 ) {
+   for ( int i = 0 ; i < size ; i++ ) {
+    long id = (t.data[i / t.perLong] >>> ((i % t.perLong) * t.bits)) & t.mask;
+    ndata[i / nper] |= id << ((i % nper) * nbits);
+   }
+  }
+  return new State(palette, nbits, ndata);
+ }
+
+ // Same stream form as when these were plain fields
+ private void writeObject ( ObjectOutputStream out ) throws IOException {
+  State t = state;
+  ObjectOutputStream.PutField f = out.putFields();
+  f.put("size", size);
+  f.put("palette", new ArrayList<>(Arrays.asList(t.palette)));
+  f.put("bits", t.bits);
+  f.put("perLong", t.perLong);
+  f.put("mask", t.mask);
+  f.put("data", t.data);
+  out.writeFields();
+ }
+
+ @SuppressWarnings("unchecked")
+ private void readObject ( ObjectInputStream in ) throws IOException, ClassNotFoundException {
+  ObjectInputStream.GetField f = in.readFields();
+  size = f.get("size", 0);
+  List<LevBlock> p = (List<LevBlock>) f.get("palette", null);
+  if ( p == null || p.isEmpty() ) {
+   throw new InvalidObjectException("Block palette is missing");
+  }
+  state = new State(p.toArray(new LevBlock[p.size()]), f.get("bits", 0), (long[]) f.get("data", null));
+ }
+
+ public interface Visitor {
+
+  public void visit ( int i, LevBlock block );
+ }
+}
@@ -1,24 +1,58 @@
 package level.chunk;
 
-import java.io.Serializable;
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import mods.basemod.LevBlock;
 import utils.containers.pos.*;
 
 public class Chunk implements Serializable {
+ public final static int SIZE = 16 * 16 * 256;
+ public final static int SECTIONS = 256 / 16;
+ public final static Chunk EMPTY = new Empty(new ChunkPos(0, 0, -1), null);// Shared, read-only
+
  private final ChunkPos id;
- private LevBlock map[][][] = new LevBlock[16][16][256];
+ private final Section map[];// null - all air
+ private final NibbleArray blight[];// null - dark
+ private final NibbleArray slight[];// null - full sky
+ private boolean lit;
+ private transient volatile boolean generating;// set by the generator until its light pass is done
+ private transient HeightMap height;
+ private transient Listener listener;
+ private transient AtomicLong account;// Resident memory total, see Region.setAccount
+ private transient long charged;
 
  public Chunk ( ChunkPos pos ) {
   this.id = pos;
+  this.map = new Section[SECTIONS];
+  this.blight = new NibbleArray[SECTIONS];
+  this.slight = new NibbleArray[SECTIONS];
+  this.height = new HeightMap();
+ }
 
+ // Empty chunks share arrays that are never written
+ private Chunk ( ChunkPos pos, Chunk shared ) {
+  this.id = pos;
+  this.map = shared == null ? new Section[SECTIONS] : shared.map;
+  this.blight = shared == null ? new NibbleArray[SECTIONS] : shared.blight;
+  this.slight = shared == null ? new NibbleArray[SECTIONS] : shared.slight;
+  this.height = shared == null ? new HeightMap() : shared.height;
  }
 
  public void heightmap () {
-  HeightMap.heightMap(this);
+  height.compute(this);
  }
 
  public void updHeightMap () {
-  HeightMap.updateMap(this);
+  height.compute(this);
+ }
+
+ public int getTop ( int x, int y ) {
+  return height.getTop(x, y);
+ }
+
+ public boolean isSkyExposed ( int x, int y, int z ) {
+  return height.isSkyExposed(x, y, z);
  }
 
  public void tick () {
@@ -37,16 +71,284 @@ public class Chunk implements Serializable {
   return id;
  }
 
+ public boolean isEmpty () {
+  for ( Section s : map ) {
+   if ( s != null ) {
+    return false;
+   }
+  }
+  return true;
+ }
+
+ public Section getSection ( int i ) {
+  return map[i];
+ }
+
+ public void setListener ( Listener listener ) {
+  this.listener = listener;
+ }
+
+ public boolean isLit () {
+  return lit;
+ }
+
+ public void setLit ( boolean lit ) {
+  this.lit = lit;
+ }
+
+ // While set, edits are neither relit one by one nor journaled: generation is replayed from the seed
+ public boolean isGenerating () {
+  return generating;
+ }
+
+ public void setGenerating ( boolean generating ) {
+  this.generating = generating;
+ }
+
+ public int getBlockLight ( int x, int y, int z ) {
+  NibbleArray t = blight[z >> 4];
+  return t == null ? 0 : t.get(index(x, y, z) & (Section.SIZE - 1));
+ }
+
+ public void setBlockLight ( int x, int y, int z, int v ) {
+  NibbleArray t = blight[z >> 4];
+  if ( t == null ) {
+   if ( v == 0 ) {
+    return;
+   }
+   t = new NibbleArray(Section.SIZE, 0);
+   blight[z >> 4] = t;
+   grow(t.getMemory());
+  } else if ( t.isShared() ) {
+   t = new NibbleArray(t);
+   blight[z >> 4] = t;
+  }
+  t.set(index(x, y, z) & (Section.SIZE - 1), v);
+ }
+
+ public int getSkyLight ( int x, int y, int z ) {
+  NibbleArray t = slight[z >> 4];
+  return t == null ? 15 : t.get(index(x, y, z) & (Section.SIZE - 1));
+ }
+
+ public void setSkyLight ( int x, int y, int z, int v ) {
+  NibbleArray t = slight[z >> 4];
+  if ( t == null ) {
+   if ( v == 15 ) {
+    return;
+   }
+   t = new NibbleArray(Section.SIZE, 15);
+   slight[z >> 4] = t;
+   grow(t.getMemory());
+  } else if ( t.isShared() ) {
+   t = new NibbleArray(t);
+   slight[z >> 4] = t;
+  }
+  t.set(index(x, y, z) & (Section.SIZE - 1), v);
+ }
+
+ // Charges this chunk's memory to the total and follows its growth, null takes it back; returns what was charged
+ public synchronized long setAccount ( AtomicLong account ) {
+  long t = charged;
+  if ( this.account != null ) {
+   this.account.addAndGet(-t);
+  }
+  this.account = account;
+  charged = 0;
+  if ( account != null ) {
+   grow(getMemory());
+  }
+  return t;
+ }
+
+ private synchronized void grow ( long d ) {
+  if ( account != null && d != 0 ) {
+   charged += d;
+   account.addAndGet(d);
+  }
+ }
+
+ public long getMemory () {
+  long t = 64;
+  for ( int i = 0 ; i < SECTIONS ; i++ ) {
+   t += (map[i] == null ? 0 : map[i].getMemory()) + (blight[i] == null ? 0 : blight[i].getMemory()) + (slight[i] == null ? 0 : slight[i].getMemory());
+  }
+  return t;
+ }
+
  public void setBlock ( BlockPos pos, LevBlock block ) {
-  map[pos.gX()][pos.gY()][pos.gZ()] = block;
+  setBlock(pos.gX(), pos.gY(), pos.gZ(), block);
+ }
+
+ public synchronized void setBlock ( int x, int y, int z, LevBlock block ) {
+  Section s = map[z >> 4];
+  long was = s == null ? 0 : s.getMemory();
+  if ( s == null ) {
+   if ( block == null ) {
+    return;
+   }
+   s = new Section();
+   map[z >> 4] = s;
+  } else if ( s.isShared() ) {
+   s = new Section(s);
+   map[z >> 4] = s;
+  }
+  LevBlock old = s.set(index(x, y, z) & (Section.SIZE - 1), block);
+  if ( s.isEmpty() ) {
+   map[z >> 4] = null;
+  }
+  grow((map[z >> 4] == null ? 0 : s.getMemory()) - was);
+  height.update(this, x, y, z, block);
+  if ( listener != null && old != block ) {
+   listener.blockChanged(this, x, y, z, old, block);
+  }
  }
 
- public void setBlock ( int x, int y, int z, LevBlock block ) {
-  map[x][y][z] = block;
+ public LevBlock getBlock ( BlockPos pos ) {
+  return getBlock(pos.gX(), pos.gY(), pos.gZ());
  }
 
+ public LevBlock getBlock ( int x, int y, int z ) {
+  Section s = map[z >> 4];
+  return s == null ? null : s.get(index(x, y, z) & (Section.SIZE - 1));
+ }
+
+ public void getBlocks ( LevBlock out[] ) {
+  for ( int i = 0 ; i < SECTIONS ; i++ ) {
+   if ( map[i] == null ) {
+    Arrays.fill(out, i * Section.SIZE, (i + 1) * Section.SIZE, null);
+   } else {
+    map[i].getStorage().getAll(out, i * Section.SIZE);
+   }
+  }
+ }
+
+ public void forEach ( BlockVisitor v ) {
+  for ( int i = 0 ; i < SECTIONS ; i++ ) {
+   if ( map[i] != null ) {
+    int zo = i << 4;
+    map[i].getStorage().forEach(( j, b ) -> {
+     v.visit(j & 15, (j >>> 4) & 15, zo + (j >>> 8), b);
+    });
+   }
+  }
+ }
+
+ // Read-only copy sharing all sections; whichever side writes next copies the section first
+ public synchronized Chunk snapshot () {
+  Chunk t = new Chunk(id);
+  for ( int i = 0 ; i < SECTIONS ; i++ ) {
+   t.map[i] = share(map[i]);
+   t.blight[i] = share(blight[i]);
+   t.slight[i] = share(slight[i]);
+  }
+  t.lit = lit;
+  t.height = new HeightMap(height);
+  return t;
+ }
+
+ private static Section share ( Section s ) {
+  if ( s != null ) {
+   s.share();
+  }
+  return s;
+ }
+
+ private static NibbleArray share ( NibbleArray n ) {
+  if ( n != null ) {
+   n.share();
+  }
+  return n;
+ }
+
+ @Deprecated
  public LevBlock[][][] getMap () {
-  return map;
+  LevBlock t[][][] = new LevBlock[16][16][256];
+  forEach(( x, y, z, b ) -> {
+   t[x][y][z] = b;
+  });
+  return t;
+ }
+
+ private void readObject ( ObjectInputStream in ) throws IOException, ClassNotFoundException {
+  in.defaultReadObject();
+  height = new HeightMap();
+  height.compute(this);
+ }
+
+ public static int index ( int x, int y, int z ) {
+  return (z << 8) | (y << 4) | x;
+ }
+
+ // Unpopulated slot of a region: reads see air, writes allocate the real chunk through the owner and go
+ // there, so get the chunk again to read them back. Without an owner (EMPTY) every write throws.
+ public static final class Empty extends Chunk {
+  private final Allocator owner;
+
+  public Empty ( ChunkPos pos, Allocator owner ) {
+   super(pos, EMPTY);
+   this.owner = owner;
+  }
+
+  private Chunk target () {
+   if ( owner == null ) {
+    throw new UnsupportedOperationException("Empty chunk is read-only, use getChunkForWrite");
+   }
+   return owner.allocate(getId());
+  }
+
+  @Override
+  public void setBlock ( int x, int y, int z, LevBlock block ) {
+   target().setBlock(x, y, z, block);
+  }
+
+  @Override
+  public void setBlockLight ( int x, int y, int z, int v ) {
+   target().setBlockLight(x, y, z, v);
+  }
+
+  @Override
+  public void setSkyLight ( int x, int y, int z, int v ) {
+   target().setSkyLight(x, y, z, v);
+  }
+
+  @Override
+  public void setLit ( boolean lit ) {
+   target().setLit(lit);
+  }
+
+  @Override
+  public void setGenerating ( boolean generating ) {
+   target().setGenerating(generating);
+  }
+
+  @Override
+  public void setListener ( Listener listener ) {
+   throw new UnsupportedOperationException("Empty chunk has no listener");
+  }
+
+  @Override
+  public void heightmap () {
+  }
+
+  @Override
+  public void updHeightMap () {
+  }
+ }
+
+ public interface Allocator {
+
+  public Chunk allocate ( ChunkPos pos );
+ }
+
+ public interface BlockVisitor {
+
+  public void visit ( int x, int y, int z, LevBlock block );
+ }
+
+ public interface Listener {
+
+  public void blockChanged ( Chunk c, int x, int y, int z, LevBlock old, LevBlock block );
  }
 }
 
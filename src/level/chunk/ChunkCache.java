@@ -0,0 +1,144 @@
+package level.chunk;
+
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+import level.chunk.codec.Codecs;
+import static main.Main.LOG;
+import utils.cache.*;
+
+// Off-heap second level between resident regions and region files, holds LZ-encoded evicted chunks
+public final class ChunkCache {
+ public final static long CAPACITY = 256L * 1024 * 1024;
+ public final static long SEGMENT = 1024L * 1024;
+ private final static int HEAD = 16;// world, region file timestamp the entry matches
+
+ private final static Object LOCK = new Object();
+ private static UnsafeMemoryCache shared;// one image per process, unmapped with its last user
+ private static File image;
+ private static int users;
+
+ private final UnsafeMemoryCache cache;
+ private boolean closed;
+ private volatile long world;
+ private final LongAdder hits = new LongAdder();
+ private final LongAdder misses = new LongAdder();
+ private final LongAdder stale = new LongAdder();
+ private final LongAdder demoted = new LongAdder();
+ private final LongAdder rejected = new LongAdder();
+
+ private ChunkCache ( UnsafeMemoryCache cache ) {
+  this.cache = cache;
+ }
+
+ // A view of the process-wide image in /dev/shm, the first user sizes it; null if shared memory is unavailable here.
+ // Entries carry their world, so containers of different worlds only see each other's as stale.
+ public static ChunkCache open ( long capacity ) {
+  if ( capacity <= 0 ) {
+   return null;
+  }
+  synchronized ( LOCK ) {
+   if ( shared == null ) {
+    try {
+     File f = File.createTempFile("game-chunks", ".cache", new File("/dev/shm"));
+     f.deleteOnExit();
+     shared = new UnsafeMemoryCache(new MemoryCacheConfiguration(capacity, Math.min(SEGMENT, capacity), f.getPath()));
+     image = f;
+    } catch ( Throwable ex ) {
+     LOG.addW("Chunk cache disabled: " + ex);
+     return null;
+    }
+   }
+   users++;
+   return new ChunkCache(shared);
+  }
+ }
+
+ // Keys must be unique: 26 bits x, 26 bits y, 3 bits z, plus a marker bit
+ public static long key ( int x, int y, int z ) {
+  return (1L << 56) | ((long) (x & 0x3FFFFFF) << 29) | ((long) (y & 0x3FFFFFF) << 3) | (z & 7);
+ }
+
+ public void setWorld ( String dir ) {
+  world = dir.hashCode();
+ }
+
+ public void put ( Chunk c, long time ) {
+  try {
+   byte t[] = RegionFile.encode(c, Codecs.LZ, HEAD);
+   putLong(t, 0, world);
+   putLong(t, 8, time);
+   if ( cache.put(key(c.getId().gX(), c.getId().gY(), c.getId().gZ()), t) ) {
+    demoted.increment();
+   } else {
+    rejected.increment();
+   }
+  } catch ( IOException ex ) {
+   LOG.addE(ex);
+  }
+ }
+
+ // Only returns the chunk if it matches the version on disk
+ public Chunk get ( int x, int y, int z, long time ) {
+  byte t[] = cache.get(key(x, y, z));
+  if ( t == null ) {
+   misses.increment();
+   return null;
+  }
+  if ( getLong(t, 0) != world || getLong(t, 8) != time ) {
+   stale.increment();
+   return null;
+  }
+  try {
+   Chunk c = RegionFile.decode(t, HEAD);
+   hits.increment();
+   return c;
+  } catch ( IOException ex ) {
+   stale.increment();
+   return null;
+  }
+ }
+
+ private static void putLong ( byte t[], int off, long v ) {
+  for ( int i = 0 ; i < 8 ; i++ ) {
+   t[off + i] = (byte) (v >>> (56 - i * 8));
+  }
+ }
+
+ private static long getLong ( byte t[], int off ) {
+  long v = 0;
+  for ( int i = 0 ; i < 8 ; i++ ) {
+   v = (v << 8) | (t[off + i] & 255);
+  }
+  return v;
+ }
+
+ public long getHits () {
+  return hits.sum();
+ }
+
+ public long getMisses () {
+  return misses.sum() + stale.sum();
+ }
+
+ // The last view to close unmaps the image and deletes it; no reader of that view may be running
+ public void close () {
+  synchronized ( LOCK ) {
+   if ( closed ) {
+    return;
+   }
+   closed = true;
+   if ( --users == 0 ) {
+    shared.close();
+    shared = null;
+    image.delete();
+    image = null;
+   }
+  }
+ }
+
+ @Override
+ public String toString () {
+  return String.format("Chunk cache (%s): %d entries, hits %d, misses %d, stale %d, demoted %d, rejected %d",
+                       cache.getBackend(), cache.count(), hits.sum(), misses.sum(), stale.sum(), demoted.sum(), rejected.sum());
+ }
+}
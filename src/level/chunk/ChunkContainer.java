@@ -2,96 +2,600 @@ package level.chunk;
 
 import java.io.*;
 import java.util.*;
-import java.util.zip.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import level.LevelGen;
+import level.chunk.codec.*;
+import mods.basemod.LevBlock;
 import static main.Main.*;
+import utils.containers.json.JSONObject;
+import utils.containers.map.ConcurrentLongMap;
 import utils.containers.pos.*;
 
-public final class ChunkContainer {
- private final Map<RegionPos, Region> reg;
- private final Set<ChunkPos> rch;// Edited chunks
- private final RegionIds oids;
+public final class ChunkContainer implements Chunk.Listener {
+ public final static int MAX_REGIONS = 64;
+ public final static long MAX_MEMORY = 512L * 1024 * 1024;
+
+ private final ConcurrentLongMap<Region> reg;
+ private final ConcurrentLongMap<Region> evicting;// Dropped, write-back pending
+ private final Map<RegionPos, RegionFile> files;
+ private final DirtySet rch;// Edited chunks
+ private final Deque<Region> clock;// Resident regions in load order
+ private volatile RegionIO io;// replaced on destroy, the container is reused for the next world
+ private final LightEngine light;
+ private final AtomicLong writeErrors = new AtomicLong();
+ private final AtomicLong memory = new AtomicLong();// Charged by resident regions, see Region.setAccount
+ private final Set<CompletableFuture<Void>> writing = ConcurrentHashMap.newKeySet();// write-backs holding taken dirty bits
+ private volatile Journal journal;
+ private final Manifest manifest = new Manifest();
+ private volatile ChunkCache l2;// opened with a world, closed by destroy
+ private volatile Codec codec = Codecs.forName(System.getProperty("region.codec"));
+ private String dir = "";
+ private int maxRegions;
+ private long maxMemory;
 
  public ChunkContainer () {
-  reg = new HashMap();
-  rch = new HashSet<>();
-  oids = new RegionIds();
+  this(MAX_REGIONS, MAX_MEMORY);
+ }
+
+ public ChunkContainer ( int maxRegions, long maxMemory ) {
+  reg = new ConcurrentLongMap<>();
+  evicting = new ConcurrentLongMap<>();
+  files = new ConcurrentHashMap<>();
+  rch = new DirtySet();
+  clock = new ArrayDeque<>();
+  io = new RegionIO();
+  light = new LightEngine(this);
+  this.maxRegions = maxRegions;
+  this.maxMemory = maxMemory;
+ }
+
+ public void setBudget ( int maxRegions, long maxMemory ) {
+  this.maxRegions = maxRegions;
+  this.maxMemory = maxMemory;
+  evict(null);
  }
 
  public void create ( String dir ) {
+  this.dir = dir;
+  openCache(dir);
   new File(dir + "region/").mkdirs();
-  for ( int px = -8 ; px <= 8; px++ ) {
-   for ( int py = -8 ; py <= 8 ; py++ ) {
-    reg.put(new RegionPos(px, py), new Region(new RegionPos(px, py)));
-   }
-  }
-//  reg.put(new RegionPos(0, 0), new Region(new RegionPos(0, 0)));
-  System.out.println("Generate");
+  LOG.addD("Generate");
   gen(SERVER.getWorldGen());
-  System.out.println("Saving");
+  LOG.addD("Saving");
   save(dir);
-  System.out.println("Saved");
+  LOG.addD("Saved");
+  openJournal(false);
+ }
+
+ private void openJournal ( boolean replay ) {
+  Journal t = new Journal(this, dir);
+  try {
+   int n = replay ? t.replay() : 0;
+   t.open();
+   journal = t;
+   if ( n > 0 ) {
+    t.checkpoint().join();
+   }
+  } catch ( IOException ex ) {
+   LOG.addE(ex);
+   LOG.addW("Running without journal");
+  }
  }
 
  private void gen ( LevelGen gen ) {
   gen.genFirst(this, new ChunkPos(0,0,0));
  }
 
- public void destroy ( String dir ) {
-  save(dir);
+ public void setCodec ( Codec codec ) {
+  this.codec = codec;
+  for ( RegionFile f : files.values() ) {
+   f.setCodec(codec);
+  }
  }
 
- public void load ( String dir ) {
-  Region t;
-  for ( File f : new File(dir + "region/").listFiles() ) {
-   try ( ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new FileInputStream(f))) ) {
-    t = (Region) in.readObject();
-    reg.put(t.getPos(), t);
-   } catch ( Exception ex ) {
+ public Codec getCodec () {
+  return codec;
+ }
+
+ public void destroy ( String dir ) {
+  Journal t = journal;
+  journal = null;
+  if ( t != null ) {// no flush or checkpoint may run into the final save, clear or close
+   t.stop();
+  }
+  long errors = writeErrors.get();
+  save(dir);
+  if ( t != null ) {
+   try {
+    LOG.addD(t.toString());
+    if ( writeErrors.get() == errors ) {
+     t.clear();
+    }
+    t.close();
+   } catch ( IOException ex ) {
     LOG.addE(ex);
    }
   }
+  RegionIO o = io;
+  io = new RegionIO();// threads start on first use, so this one costs nothing until the next world
+  o.shutdown();
+  LOG.addD(o.toString());
+  ChunkCache cache = l2;
+  l2 = null;
+  if ( cache != null ) {// the old pool is stopped, nothing demotes into it any more
+   LOG.addD(cache.toString());
+   cache.close();
+  }
+  for ( Codec c : Codecs.getAll() ) {
+   LOG.addD(c.toString());
+  }
+  if ( Codecs.get(codec.id()) != codec ) {
+   LOG.addD(codec.toString());
+  }
+  close();
+  reset();
+ }
 
-  reg.keySet().stream().
-     forEach(( r ) -> {
-      oids.put(r);
+ // The container is reused for the next world, nothing of this one may stay resident
+ private void reset () {
+  reg.clear();
+  evicting.clear();
+  synchronized ( clock ) {
+   clock.clear();
+  }
+  memory.set(0);
+  rch.clear();
+  manifest.clear();
+ }
+
+ private void openCache ( String dir ) {
+  if ( l2 == null ) {
+   l2 = ChunkCache.open(Long.getLong("chunk.cache.mb", ChunkCache.CAPACITY >> 20) << 20);
+  }
+  if ( l2 != null ) {
+   l2.setWorld(dir);
+  }
+ }
+
+ private synchronized void close () {
+  files.values().stream().
+     forEach(( f ) -> {
+      try {
+       f.close();
+      } catch ( IOException ex ) {
+       LOG.addE(ex);
+      }
      });
-  LOG.addD("Loaded " + reg.size() + " regions");
+  files.clear();
+ }
+
+ public void load ( String dir ) {
+  this.dir = dir;
+  openCache(dir);
+  new File(dir + "region/").mkdirs();
+  String t[] = new File(dir + "region/").list();
+  LOG.addD("Opened " + (t == null ? 0 : t.length) + " region files");
+  manifest.load(dir);
+  openJournal(true);
  }
 
  public void save ( String dir ) {
-  List<Region> t = new ArrayList<>();
-  RegionPos t1;
-  for ( ChunkPos r : rch ) {
-   t1 = oids.search(r);
-   if ( !(t1.isNull() || t.contains(reg.get(t1))) ) {
-    t.add(reg.get(t1));
+  saveAsync().join();
+ }
+
+ public CompletableFuture<Void> saveAsync () {
+  long t[] = rch.regions();
+  CompletableFuture<?> fs[] = new CompletableFuture<?>[t.length];
+  for ( int i = 0 ; i < t.length ; i++ ) {
+   RegionPos r = RegionPos.of(t[i]);
+   fs[i] = io.save(r, () -> writeBack(r));
+  }
+  // Also waits for write-backs already in flight, e.g. from eviction: their dirty bits are taken, so fs can't see them
+  return CompletableFuture.allOf(fs).
+     thenCompose(( v ) -> CompletableFuture.allOf(writing.toArray(new CompletableFuture<?>[0]))).
+     thenRun(this::checkpoint);
+ }
+
+ private void checkpoint () {
+  try {
+   manifest.save(dir);
+  } catch ( IOException ex ) {
+   LOG.addE(ex);
+   writeErrors.incrementAndGet();
+  }
+ }
+
+ public void setMeta ( JSONObject meta ) {
+  manifest.setMeta(meta);
+ }
+
+ public Manifest getManifest () {
+  return manifest;
+ }
+
+ public void edit ( ChunkPos pos ) {
+  rch.add(pos);
+ }
+
+ public void edit ( int x, int y, int z ) {
+  rch.add(x, y, z);
+ }
+
+ public int getResident () {
+  return reg.size();
+ }
+
+ public long getMemory () {
+  return memory.get();
+ }
+
+ public List<Region> getRegions () {
+  return reg.values();
+ }
+
+ public Snapshot snapshot () {
+  Snapshot t = new Snapshot();
+  for ( Region r : reg.values() ) {
+   for ( Chunk c : r.snapshot() ) {
+    t.add(c);
+   }
+  }
+  return t;
+ }
+
+ public Chunk snapshot ( int x, int y, int z ) {
+  Chunk t = getLoadedChunk(x, y, z);
+  return t == null ? null : t.snapshot();
+ }
+
+ public RegionIO getIO () {
+  return io;
+ }
+
+ public LightEngine getLight () {
+  return light;
+ }
+
+ @Override
+ public void blockChanged ( Chunk c, int x, int y, int z, LevBlock old, LevBlock block ) {
+  rch.add(c.getId());
+  if ( !owns(c) ) {// a reference held past eviction, the edit goes to the current copy
+   Chunk t = getChunkForWrite(c.getId());
+   if ( t != c ) {
+    t.setBlock(x, y, z, block);
+    return;
    }
   }
+  light.update(c, x, y, z, old, block);
+  Journal t = journal;
+  if ( t != null && !c.isGenerating() ) {
+   t.log(c, x, y, z, block);
+  }
+ }
+
+ // Dirty bit is set before this check, so either a write-back still sees it or the caller redirects
+ private boolean owns ( Chunk c ) {
+  long k = Position.key(c.getId().gX() >> 3, c.getId().gY() >> 3, 0);
+  int i = RegionFile.index(c.getId().gX(), c.getId().gY(), c.getId().gZ());
+  Region r = reg.get(k);
+  if ( r != null && r.getChunk(i) == c ) {
+   return true;
+  }
+  r = evicting.get(k);
+  return r != null && r.getChunk(i) == c;
+ }
+
+ public Journal getJournal () {
+  return journal;
+ }
+
+ public long getWriteErrors () {
+  return writeErrors.get();
+ }
 
-  t.stream().
+ public Chunk getChunk ( ChunkPos pos ) {
+  return getChunk(pos.gX(), pos.gY(), pos.gZ());
+ }
+
+ public Chunk getChunk ( int x, int y, int z ) {
+  return getRegion(x >> 3, y >> 3).getChunk(x, y, z);
+ }
+
+ public Chunk getChunkForWrite ( ChunkPos pos ) {
+  return getChunkForWrite(pos.gX(), pos.gY(), pos.gZ());
+ }
+
+ public Chunk getChunkForWrite ( int x, int y, int z ) {
+  Chunk t = getRegion(x >> 3, y >> 3).getChunkForWrite(x, y, z);
+  rch.add(x, y, z);
+  return t;
+ }
+
+ public Chunk getLoadedChunk ( int x, int y, int z ) {
+  Region t = resident(Position.key(x >> 3, y >> 3, 0));
+  if ( t == null || !t.contains(x, y, z) ) {
+   return null;
+  }
+  return t.getChunk(RegionFile.index(x, y, z));
+ }
+
+ public Chunk getChunkIfLoaded ( ChunkPos pos ) {
+  return getChunkIfLoaded(pos.gX(), pos.gY(), pos.gZ());
+ }
+
+ public Chunk getChunkIfLoaded ( int x, int y, int z ) {
+  Region t = resident(Position.key(x >> 3, y >> 3, 0));
+  if ( t == null ) {
+   getRegionAsync(new RegionPos(x >> 3, y >> 3));
+   return null;
+  }
+  t.touch();
+  return t.getChunk(x, y, z);
+ }
+
+ public Region getRegion ( RegionPos pos ) {
+  return getRegion(pos.gX(), pos.gY());
+ }
+
+ public Region getRegion ( int x, int y ) {
+  Region t = resident(Position.key(x, y, 0));
+  if ( t == null ) {
+   t = getRegionAsync(new RegionPos(x, y)).join();
+  }
+  t.touch();
+  return t;
+ }
+
+ public CompletableFuture<Region> getRegionAsync ( RegionPos pos ) {
+  Region t = resident(pos.key());
+  if ( t != null ) {
+   return CompletableFuture.completedFuture(t);
+  }
+  return io.load(pos, this::loadRegion).thenApply(this::install);
+ }
+
+ public boolean isLoaded ( RegionPos pos ) {
+  return resident(pos.key()) != null;
+ }
+
+ public void prefetch ( ChunkPos pos ) {
+  if ( resident(Position.key(pos.gX() >> 3, pos.gY() >> 3, 0)) == null ) {
+   getRegionAsync(new RegionPos(pos.gX() >> 3, pos.gY() >> 3));
+  }
+ }
+
+ public void prefetch ( ChunkPos center, int radius ) {
+  for ( int x = -radius ; x <= radius ; x++ ) {
+   for ( int y = -radius ; y <= radius ; y++ ) {
+    prefetch(new ChunkPos(center.gX() + x * 8, center.gY() + y * 8, 0));
+   }
+  }
+ }
+
+ private Region resident ( long key ) {
+  return reg.get(key);
+ }
+
+ private Region install ( Region t ) {
+  Region o = reg.putIfAbsent(t.key(), t);
+  if ( o != null ) {
+   return o;
+  }
+  t.setListener(this);
+  t.setAccount(memory);
+  synchronized ( clock ) {
+   clock.addLast(t);
+  }
+  evict(t);
+  return t;
+ }
+
+ private Region loadRegion ( RegionPos pos ) {
+  Region t;
+  synchronized ( evicting ) {// pairs with retire, an evicted region is dropped only when clean
+   t = evicting.get(pos.key());
+  }
+  if ( t != null ) {
+   return t;
+  }
+  t = new Region(pos);
+  File f = new File(dir + pos.getName());
+  if ( f.canRead() && RegionFile.isLegacy(f) ) {
+   convert(f, pos);
+  }
+  if ( f.canRead() ) {
+   RegionFile rf;
+   try {
+    rf = file(t.getPos());
+   } catch ( IOException ex ) {// nothing of it is readable, the load fails rather than showing the region empty
+    throw new UncheckedIOException(ex);
+   }
+   ChunkCache cache = l2;
+   for ( int i = 0 ; i < RegionFile.CHUNKS ; i++ ) {
+    if ( rf.contains(i) ) {
+     try {
+      Chunk c = cache == null ? null : cache.get(pos.gX() * 8 + (i & 7), pos.gY() * 8 + ((i >>> 3) & 7), i >>> 6, rf.getTimestamp(i));
+      t.putChunk(c != null ? c : rf.readChunk(i));
+     } catch ( Exception ex ) {
+      LOG.addE(ex);
+      LOG.addW("Chunk " + i + " of " + pos.getName() + " is unreadable, its record is kept and edits to it are not saved");
+      t.setBroken(i);
+     }
+    }
+   }
+  }
+  return t;
+ }
+
+ // Rewrites an old gzip region as a region file on first load, the original stays next to it as .old
+ private void convert ( File f, RegionPos pos ) {
+  File old = new File(f.getPath() + ".old");
+  try {
+   List<Chunk> t = LegacyRegion.read(f);
+   if ( !f.renameTo(old) ) {
+    throw new IOException("Can't rename " + f + " to " + old.getName());
+   }
+   light.light(t);
+   RegionFile rf = file(pos);
+   for ( Chunk c : t ) {
+    rf.writeChunk(c);
+   }
+   rf.flush();
+   manifest.update(pos, rf.getVersion(), rf.length());
+   LOG.addW("Converted old-format region " + f.getName() + ", " + t.size() + " chunks");
+  } catch ( IOException ex ) {
+   LOG.addE(ex);
+   if ( f.exists() && f.renameTo(old) ) {// a region file must not be opened over it
+    LOG.addW("Can't convert old-format region " + f.getName() + ", moved to " + old.getName());
+   }
+  }
+ }
+
+ private void evict ( Region keep ) {
+  List<Region> out = new ArrayList<>();
+  synchronized ( clock ) {
+   long mem = maxMemory > 0 ? memory.get() : 0;
+   for ( int n = 2 * clock.size() ; n > 0 && clock.size() > 1 && (clock.size() > maxRegions || mem > maxMemory) ; n-- ) {
+    Region r = clock.pollFirst();
+    if ( r == keep || r.isUsed() ) {
+     r.clearUsed();
+     clock.addLast(r);
+     continue;
+    }
+    mem -= r.discharge();
+    out.add(r);
+   }
+  }
+  out.stream().
      forEach(( r ) -> {
-      if ( new File(dir + r.getName()).canRead() ) {
-       new File(dir + r.getName()).delete();
+      evicting.put(r.key(), r);
+      reg.remove(r.key());
+      retire(r);
+     });
+  if ( !out.isEmpty() ) {
+   LOG.addD("Evicted " + out.size() + " regions, " + getResident() + " resident");
+  }
+ }
+
+ // Writes an evicted region back until no edit raced the write, then drops it; a failed write keeps it resident
+ private void retire ( Region r ) {
+  long errors = writeErrors.get();
+  io.save(r.getPos(), () -> writeBack(r.getPos())).
+     whenComplete(( v, ex ) -> {
+      boolean again = false;
+      synchronized ( evicting ) {
+       evicting.remove(r.key(), r);
+       if ( ex != null || writeErrors.get() != errors ) {
+        if ( reg.putIfAbsent(r.key(), r) == null ) {
+         r.setAccount(memory);
+         synchronized ( clock ) {
+          clock.addLast(r);
+         }
+        }
+        LOG.addW("Write-back of " + r.getName() + " failed, keeping it resident");
+        return;
+       }
+       if ( rch.isDirty(r.key()) ) {
+        evicting.put(r.key(), r);
+        again = true;
+       }
       }
-      try ( ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(dir + r.getName()))) ) {
-       out.writeObject(r);
-       out.flush();
-      } catch ( Exception ex ) {
-       LOG.addE(ex);
+      if ( again ) {
+       retire(r);
+      } else {
+       demote(r);
       }
      });
-  LOG.addD("Writed " + t.size() + " regions");
  }
 
- public void edit ( ChunkPos pos ) {
-  rch.add(pos);
+ // Keeps the clean, just written chunks of an evicted region in the L2 cache, tagged with their on-disk version
+ private void demote ( Region r ) {
+  ChunkCache cache = l2;
+  if ( cache == null ) {
+   return;
+  }
+  try {
+   RegionFile f = file(r.getPos());
+   for ( Chunk c : r.getChunks() ) {
+    int i = RegionFile.index(c.getId().gX(), c.getId().gY(), c.getId().gZ());
+    long time = f.getTimestamp(i);
+    if ( time != 0 && !r.isBroken(i) ) {
+     cache.put(c.snapshot(), time);
+    }
+   }
+  } catch ( IOException ex ) {
+   LOG.addE(ex);
+  }
  }
 
- public Chunk getChunk ( ChunkPos pos ) {
-  if ( this.reg.containsKey(new RegionPos(pos.gX() / 8, pos.gY() / 8)) ) {
-   return this.reg.get(new RegionPos(pos.gX() / 8, pos.gY() / 8)).getChunk(pos);
+ public ChunkCache getCache () {
+  return l2;
+ }
+
+ private void writeBack ( RegionPos pos ) {
+  Region r = resident(pos.key());
+  if ( r == null ) {
+   r = evicting.get(pos.key());
+  }
+  if ( r == null ) {
+   return;
+  }
+  CompletableFuture<Void> busy = new CompletableFuture<>();
+  writing.add(busy);// before take, so a save that finds the bits gone still waits for this write
+  long t[] = rch.take(pos.key());
+  if ( t == null ) {
+   writing.remove(busy);
+   busy.complete(null);
+   return;
+  }
+  Region rr = r;
+  try {
+   RegionFile f = file(pos);
+   f.atomic(( tmp ) -> {
+    for ( int w = 0 ; w < t.length ; w++ ) {
+     for ( long b = t[w] ; b != 0 ; b &= b - 1 ) {
+      int i = w * 64 + Long.numberOfTrailingZeros(b);
+      if ( rr.isBroken(i) ) {
+       continue;
+      }
+      Chunk c = rr.getChunk(i);
+      if ( c == null || c.isEmpty() ) {
+       tmp.remove(i);
+      } else {
+       tmp.writeChunk(c.snapshot());
+      }
+     }
+    }
+   });
+   manifest.update(pos, f.getVersion(), f.length());
+  } catch ( IOException ex ) {
+   LOG.addE(ex);
+   writeErrors.incrementAndGet();
+   for ( int i = 0 ; i < RegionFile.CHUNKS ; i++ ) {
+    if ( (t[i >>> 6] & (1L << i)) != 0 ) {
+     rch.add(pos.gX() * 8 + (i & 7), pos.gY() * 8 + ((i >>> 3) & 7), i >>> 6);
+    }
+   }
+  } finally {
+   writing.remove(busy);
+   busy.complete(null);
+  }
+ }
+
+ private RegionFile file ( RegionPos pos ) throws IOException {
+  RegionFile f = files.get(pos);
+  if ( f != null ) {
+   return f;
+  }
+  synchronized ( this ) {
+   f = files.get(pos);
+   if ( f == null ) {
+    f = new RegionFile(new File(dir + pos.getName()));
+    f.setCodec(codec);
+    files.put(pos, f);
+   }
+   return f;
   }
-  return new Chunk(pos);
  }
 }
@@ -0,0 +1,99 @@
+package level.chunk;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.*;
+import utils.containers.map.ConcurrentLongMap;
+import utils.containers.pos.*;
+
+public final class DirtySet {
+ private final ConcurrentLongMap<AtomicLongArray> map = new ConcurrentLongMap<>();// region key -> chunk bitmap
+ private final AtomicInteger count = new AtomicInteger();
+
+ public void add ( ChunkPos pos ) {
+  add(pos.gX(), pos.gY(), pos.gZ());
+ }
+
+ public void add ( int x, int y, int z ) {
+  long k = Position.key(x >> 3, y >> 3, 0);
+  AtomicLongArray t = map.get(k);
+  if ( t == null ) {
+   t = new AtomicLongArray(RegionFile.CHUNKS / 64);
+   AtomicLongArray o = map.putIfAbsent(k, t);
+   if ( o != null ) {
+    t = o;
+   }
+  }
+  int i = RegionFile.index(x, y, z);
+  long b = 1L << i;
+  for ( long o = t.get(i >>> 6) ; (o & b) == 0 ; o = t.get(i >>> 6) ) {
+   if ( t.compareAndSet(i >>> 6, o, o | b) ) {
+    count.incrementAndGet();
+    return;
+   }
+  }
+ }
+
+ public boolean contains ( int x, int y, int z ) {
+  AtomicLongArray t = map.get(Position.key(x >> 3, y >> 3, 0));
+  int i = RegionFile.index(x, y, z);
+  return t != null && (t.get(i >>> 6) & (1L << i)) != 0;
+ }
+
+ public boolean isDirty ( long region ) {
+  AtomicLongArray t = map.get(region);
+  return t != null && !isClean(t);
+ }
+
+ public long[] regions () {
+  long t[] = map.keys();
+  int n = 0;
+  for ( long k : t ) {
+   if ( !isClean(map.get(k)) ) {
+    t[n++] = k;
+   }
+  }
+  return Arrays.copyOf(t, n);
+ }
+
+ // Bitmaps stay in the map once created, so a concurrent add never lands in a dropped one
+ public long[] take ( long region ) {
+  AtomicLongArray t = map.get(region);
+  if ( t == null ) {
+   return null;
+  }
+  long out[] = new long[t.length()];
+  int n = 0;
+  for ( int w = 0 ; w < out.length ; w++ ) {
+   out[w] = t.getAndSet(w, 0);
+   n += Long.bitCount(out[w]);
+  }
+  if ( n == 0 ) {
+   return null;
+  }
+  count.addAndGet(-n);
+  return out;
+ }
+
+ public int size () {
+  return count.get();
+ }
+
+ // Only while no writer is running
+ public void clear () {
+  map.clear();
+  count.set(0);
+ }
+
+ public int regionCount () {
+  return regions().length;
+ }
+
+ private static boolean isClean ( AtomicLongArray t ) {
+  for ( int w = 0 ; w < t.length() ; w++ ) {
+   if ( t.get(w) != 0 ) {
+    return false;
+   }
+  }
+  return true;
+ }
+}
@@ -1,48 +1,53 @@
 package level.chunk;
 
+import mods.basemod.LevBlock;
+
 public final class HeightMap {
- public static void heightMap ( Chunk ch ) {
-//  int mid = 0;
-//  int tid = 0;
-//  int sid = 0;
-//  for ( int ix = 0 ; ix < 15 ; ix++ ) {
-//   for ( int iy = 0 ; iy < 15 ; iy++ ) {
-//    for ( int iz = 0 ; iz < 127 ; iz++ ) {
-//     if ( blocks[ix][iy][iz] != null ) {
-////      mid = blocks[ix][iy][iz].getId().getMid();
-////      tid = blocks[ix][iy][iz].getId().getIid();
-//
-//      if ( blocks[ix][iy - 1][iz] == null ) {// 0
-//       Texrend.add(new RendTexCoord(new Vec3<>(ix, iy, iz), 0, new TId(mid,
-//                                                                       tid)));
-//      }
-//      if ( blocks[ix][iy + 1][iz] == null ) {// 1
-//       Texrend.add(new RendTexCoord(new Vec3<>(ix, iy, iz), 1, new TId(mid,
-//                                                                       tid)));
-//      }
-//      if ( blocks[ix][iy][iz - 1] == null ) {// 2
-//       Texrend.add(new RendTexCoord(new Vec3<>(ix, iy, iz), 2, new TId(mid,
-//                                                                       tid)));
-//      }
-//      if ( blocks[ix][iy][iz + 1] == null ) {// 3
-//       Texrend.add(new RendTexCoord(new Vec3<>(ix, iy, iz), 3, new TId(mid,
-//                                                                       tid)));
-//      }
-//      if ( blocks[ix - 1][iy][iz] == null ) {// 4
-//       Texrend.add(new RendTexCoord(new Vec3<>(ix, iy, iz), 4, new TId(mid,
-//                                                                       tid)));
-//      }
-//      if ( blocks[ix + 1][iy][iz] == null ) {// 5
-//       Texrend.add(new RendTexCoord(new Vec3<>(ix, iy, iz), 5, new TId(mid,
-//                                                                       tid)));
-//      }
-//     }
-//    }
-//   }
-//  }
+ private final short map[] = new short[16 * 16];// highest solid z + 1, 0 - empty column
+
+ public HeightMap () {
+ }
+
+ public HeightMap ( HeightMap o ) {
+  System.arraycopy(o.map, 0, map, 0, map.length);
+ }
+
+ public void compute ( Chunk ch ) {
+  for ( int x = 0 ; x < 16 ; x++ ) {
+   for ( int y = 0 ; y < 16 ; y++ ) {
+    map[x | (y << 4)] = (short) scan(ch, x, y, 255);
+   }
+  }
  }
 
- public static void updateMap ( Chunk ch ) {
+ public void update ( Chunk ch, int x, int y, int z, LevBlock block ) {
+  int i = x | (y << 4);
+  if ( block != null ) {
+   if ( z >= map[i] ) {
+    map[i] = (short) (z + 1);
+   }
+  } else if ( z + 1 == map[i] ) {
+   map[i] = (short) scan(ch, x, y, z - 1);
+  }
+ }
+
+ public int getTop ( int x, int y ) {
+  return map[x | (y << 4)] - 1;
+ }
+
+ public boolean isSkyExposed ( int x, int y, int z ) {
+  return z >= map[x | (y << 4)];
+ }
 
+ private static int scan ( Chunk ch, int x, int y, int from ) {
+  for ( int z = from ; z >= 0 ; z-- ) {
+   Section s = ch.getSection(z >> 4);
+   if ( s == null ) {
+    z &= ~15;
+   } else if ( s.get(Chunk.index(x, y, z) & (Section.SIZE - 1)) != null ) {
+    return z + 1;
+   }
+  }
+  return 0;
  }
 }
@@ -0,0 +1,357 @@
+package level.chunk;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.CRC32;
+import static main.Main.LOG;
+import mods.basemod.LevBlock;
+
+// Append-only log of block edits, one segment per checkpoint
+public final class Journal implements Closeable {
+ public final static int INTERVAL = 20;// ms between group commits
+ public final static long MAX_SEGMENT = 16L * 1024 * 1024;
+ public final static long CHECKPOINT = 5 * 60 * 1000;// ms
+ private final static byte DEFINE = 1;
+ private final static byte EDIT = 2;
+
+ private final ChunkContainer cont;
+ private final File dir;
+ private final Object channel = new Object();// guards out and segment switches
+ private final ScheduledExecutorService timer;
+ private final AtomicBoolean checkpointing = new AtomicBoolean();
+ private volatile CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);// last checkpoint's write-back
+
+ private final ByteArrayOutputStream buf = new ByteArrayOutputStream(4096);
+ private final DataOutputStream data = new DataOutputStream(buf);
+ private final Map<LevBlock, Integer> dict = new IdentityHashMap<>();// per segment
+ private volatile FileChannel out;
+ private long segment;
+ private long size;
+ private long opened;
+ private volatile boolean replaying;
+
+ private final LongAdder records = new LongAdder();
+ private final LongAdder batches = new LongAdder();
+ private final LongAdder bytes = new LongAdder();
+ private final LongAdder syncTime = new LongAdder();
+
+ public Journal ( ChunkContainer cont, String dir ) {
+  this.cont = cont;
+  this.dir = new File(dir + "journal/");
+  this.dir.mkdirs();
+  this.timer = Executors.newSingleThreadScheduledExecutor(( r ) -> {
+   Thread t = new Thread(r, "Journal");
+   t.setDaemon(true);
+   return t;
+  });
+ }
+
+ public void open () throws IOException {
+  long s[] = segments();
+  synchronized ( channel ) {
+   take(true);
+   roll(s.length == 0 ? 1 : s[s.length - 1] + 1);
+  }
+  timer.scheduleWithFixedDelay(() -> {
+   try {
+    flush();
+    if ( size > MAX_SEGMENT || (size > 0 && System.currentTimeMillis() - opened > CHECKPOINT) ) {
+     checkpoint();
+    }
+   } catch ( IOException ex ) {
+    LOG.addE(ex);
+   }
+  }, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+ }
+
+ public void log ( Chunk c, int x, int y, int z, LevBlock block ) {
+  if ( replaying || out == null ) {
+   return;
+  }
+  int bx = c.getId().gX() * 16 + x;
+  int by = c.getId().gY() * 16 + y;
+  int bz = c.getId().gZ() * 256 + z;
+  try {
+   synchronized ( this ) {
+    int id = define(block);
+    data.writeByte(EDIT);
+    data.writeInt(bx);
+    data.writeInt(by);
+    data.writeInt(bz);
+    data.writeInt(id);
+   }
+   records.increment();
+  } catch ( IOException ex ) {
+   LOG.addE(ex);
+  }
+ }
+
+ // Group commit: everything logged so far becomes durable with one write and one fsync
+ public void flush () throws IOException {
+  synchronized ( channel ) {
+   write(take(false));
+  }
+ }
+
+ // Starts a new segment, then writes dirty chunks back and drops the older segments once that succeeds
+ public CompletableFuture<Void> checkpoint () throws IOException {
+  if ( !checkpointing.compareAndSet(false, true) ) {
+   return CompletableFuture.completedFuture(null);
+  }
+  long last;
+  try {
+   synchronized ( channel ) {
+    write(take(true));
+    last = segment;
+    roll(segment + 1);
+   }
+  } catch ( IOException ex ) {
+   checkpointing.set(false);
+   throw ex;
+  }
+  long errors = cont.getWriteErrors();
+  CompletableFuture<Void> t = cont.saveAsync().
+     whenComplete(( v, ex ) -> {
+      if ( ex == null && cont.getWriteErrors() == errors ) {
+       drop(last);
+      } else {
+       LOG.addW("Checkpoint failed, keeping journal up to " + last);
+      }
+      checkpointing.set(false);
+     });
+  pending = t;
+  return t;
+ }
+
+ // Stops group commits and waits, bounded, for a running flush or checkpoint; logging after this stays buffered
+ public void stop () {
+  timer.shutdown();
+  try {
+   if ( !timer.awaitTermination(1, TimeUnit.MINUTES) ) {
+    LOG.addW("Journal timer did not stop in time");
+   }
+   pending.get(1, TimeUnit.MINUTES);
+  } catch ( InterruptedException ex ) {
+   Thread.currentThread().interrupt();
+  } catch ( ExecutionException | TimeoutException ex ) {
+   LOG.addW("Journal checkpoint did not finish: " + ex);
+  }
+ }
+
+ // Drops every segment, for use after a full save
+ public void clear () throws IOException {
+  synchronized ( channel ) {
+   take(true);
+   long last = segment;
+   roll(segment + 1);
+   drop(last);
+  }
+ }
+
+ // Applies all segments to the container; the caller saves and checkpoints afterwards
+ public int replay () {
+  int n = 0;
+  replaying = true;
+  try {
+   for ( long s : segments() ) {
+    n += replay(file(s));
+   }
+  } finally {
+   replaying = false;
+  }
+  if ( n > 0 ) {
+   LOG.addW("Replayed " + n + " block edits from journal");
+  }
+  return n;
+ }
+
+ private int replay ( File f ) {
+  Map<Integer, LevBlock> blocks = new HashMap<>();
+  int n = 0;
+  try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f))) ) {
+   while ( true ) {
+    int len, sum;
+    byte t[];
+    try {
+     len = in.readInt();
+     sum = in.readInt();
+     if ( len < 0 || len > MAX_SEGMENT * 2 ) {
+      break;
+     }
+     t = new byte[len];
+     in.readFully(t);
+    } catch ( EOFException ex ) {
+     break;// torn tail, batch was never acknowledged
+    }
+    CRC32 crc = new CRC32();
+    crc.update(t, 0, t.length);
+    if ( (int) crc.getValue() != sum ) {
+     LOG.addW("Journal " + f.getName() + ": bad checksum, stopping replay");
+     break;
+    }
+    n += apply(new DataInputStream(new ByteArrayInputStream(t)), blocks);
+   }
+  } catch ( IOException | ClassNotFoundException ex ) {
+   LOG.addE(ex);
+  }
+  return n;
+ }
+
+ private int apply ( DataInputStream in, Map<Integer, LevBlock> blocks ) throws IOException, ClassNotFoundException {
+  int n = 0;
+  while ( in.available() > 0 ) {
+   byte type = in.readByte();
+   if ( type == DEFINE ) {
+    int id = in.readInt();
+    byte t[] = new byte[in.readInt()];
+    in.readFully(t);
+    try ( ObjectInputStream o = new ObjectInputStream(new ByteArrayInputStream(t)) ) {
+     blocks.put(id, (LevBlock) o.readObject());
+    }
+   } else if ( type == EDIT ) {
+    int x = in.readInt();
+    int y = in.readInt();
+    int z = in.readInt();
+    int id = in.readInt();
+    Chunk c = cont.getChunkForWrite(x >> 4, y >> 4, z >> 8);
+    if ( c != null ) {
+     c.setBlock(x & 15, y & 15, z & 255, id < 0 ? null : blocks.get(id));
+     n++;
+    }
+   } else {
+    throw new IOException("Bad journal record " + type);
+   }
+  }
+  return n;
+ }
+
+ private int define ( LevBlock block ) throws IOException {
+  if ( block == null ) {
+   return -1;
+  }
+  Integer id = dict.get(block);
+  if ( id == null ) {
+   id = dict.size();
+   dict.put(block, id);
+   ByteArrayOutputStream t = new ByteArrayOutputStream();
+   try ( ObjectOutputStream o = new ObjectOutputStream(t) ) {
+    o.writeObject(block);
+   }
+   data.writeByte(DEFINE);
+   data.writeInt(id);
+   data.writeInt(t.size());
+   t.writeTo(data);
+  }
+  return id;
+ }
+
+ private synchronized byte[] take ( boolean reset ) {
+  byte t[] = buf.size() == 0 ? null : buf.toByteArray();
+  buf.reset();
+  if ( reset ) {
+   dict.clear();// next segment defines its blocks again
+  }
+  return t;
+ }
+
+ // Caller holds channel
+ private void write ( byte t[] ) throws IOException {
+  if ( t == null || out == null ) {
+   return;
+  }
+  long start = System.nanoTime();
+  CRC32 crc = new CRC32();
+  crc.update(t, 0, t.length);
+  ByteBuffer b = ByteBuffer.allocate(8 + t.length);
+  b.putInt(t.length);
+  b.putInt((int) crc.getValue());
+  b.put(t);
+  b.flip();
+  while ( b.hasRemaining() ) {
+   out.write(b);
+  }
+  out.force(false);
+  size += 8 + t.length;
+  batches.increment();
+  bytes.add(8 + t.length);
+  syncTime.add(System.nanoTime() - start);
+ }
+
+ // Caller holds channel
+ private void roll ( long next ) throws IOException {
+  if ( out != null ) {
+   out.close();
+  }
+  out = FileChannel.open(file(next).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  segment = next;
+  size = out.size();
+  opened = System.currentTimeMillis();
+ }
+
+ private void drop ( long last ) {
+  for ( long s : segments() ) {
+   if ( s <= last && !file(s).delete() ) {
+    LOG.addW("Can't delete journal segment " + s);
+   }
+  }
+ }
+
+ private long[] segments () {
+  String t[] = dir.list(( d, name ) -> name.endsWith(".log"));
+  if ( t == null ) {
+   return new long[0];
+  }
+  long s[] = new long[t.length];
+  int n = 0;
+  for ( String name : t ) {
+   try {
+    s[n++] = Long.parseLong(name.substring(0, name.length() - 4));
+   } catch ( NumberFormatException ex ) {
+    LOG.addW("Stray journal file " + name);
+   }
+  }
+  s = Arrays.copyOf(s, n);
+  Arrays.sort(s);
+  return s;
+ }
+
+ private File file ( long s ) {
+  return new File(dir, s + ".log");
+ }
+
+ public long getRecords () {
+  return records.sum();
+ }
+
+ public long getBatches () {
+  return batches.sum();
+ }
+
+ public long getSize () {
+  return size;
+ }
+
+ @Override
+ public void close () throws IOException {
+  stop();
+  synchronized ( channel ) {
+   write(take(false));
+   if ( out != null ) {
+    out.close();
+    out = null;
+   }
+  }
+ }
+
+ @Override
+ public String toString () {
+  long b = batches.sum();
+  return String.format("Journal: %d edits in %d batches, %d KB, avg fsync %.2f ms",
+                       records.sum(), b, bytes.sum() / 1024, b == 0 ? 0 : syncTime.sum() / 1e6 / b);
+ }
+}
@@ -0,0 +1,80 @@
+package level.chunk;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import mods.basemod.LevBlock;
+import utils.containers.pos.ChunkPos;
+
+// Region files from before RegionFile: one gzipped serialized Region in the old class layout.
+// The stream's classes are swapped for the mirrors below, which keep exactly the old fields.
+final class LegacyRegion {
+ private final static Map<String, Class<?>> CLASSES = new HashMap<>();
+
+ static {
+  CLASSES.put("level.chunk.Region", OldRegion.class);
+  CLASSES.put("level.chunk.Chunk", OldChunk.class);
+  CLASSES.put("utils.containers.pos.Position", OldPosition.class);
+  CLASSES.put("utils.containers.pos.ChunkPos", OldChunkPos.class);
+  CLASSES.put("utils.containers.pos.RegionPos", OldRegionPos.class);
+ }
+
+ private LegacyRegion () {
+ }
+
+ // Non-empty chunks of the file, in the current format
+ static List<Chunk> read ( File f ) throws IOException {
+  try ( ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new FileInputStream(f))) {
+   @Override
+   protected ObjectStreamClass readClassDescriptor () throws IOException, ClassNotFoundException {
+    ObjectStreamClass d = super.readClassDescriptor();
+    Class<?> t = CLASSES.get(d.getName());
+    return t == null ? d : ObjectStreamClass.lookup(t);
+   }
+  } ) {
+   OldRegion r = (OldRegion) in.readObject();
+   List<Chunk> out = new ArrayList<>();
+   for ( OldChunk o : r.map.values() ) {
+    Chunk c = new Chunk(new ChunkPos(o.id.x, o.id.y, o.id.z));
+    for ( int x = 0 ; x < 16 ; x++ ) {
+     for ( int y = 0 ; y < 16 ; y++ ) {
+      for ( int z = 0 ; z < 256 ; z++ ) {
+       if ( o.map[x][y][z] != null ) {
+        c.setBlock(x, y, z, o.map[x][y][z]);
+       }
+      }
+     }
+    }
+    if ( !c.isEmpty() ) {
+     out.add(c);
+    }
+   }
+   return out;
+  } catch ( ClassNotFoundException | ClassCastException ex ) {
+   throw new IOException("Bad old-format region " + f.getName(), ex);
+  }
+ }
+
+ private static class OldPosition implements Serializable {
+  Integer x;
+  Integer y;
+  Integer z;
+ }
+
+ private static final class OldChunkPos extends OldPosition {
+ }
+
+ private static final class OldRegionPos extends OldPosition {
+  Set<OldChunkPos> set;
+ }
+
+ private static final class OldChunk implements Serializable {
+  OldChunkPos id;
+  LevBlock map[][][];
+ }
+
+ private static final class OldRegion implements Serializable {
+  Map<OldChunkPos, OldChunk> map;
+  OldRegionPos pos;
+ }
+}
@@ -0,0 +1,316 @@
+package level.chunk;
+
+import java.util.*;
+import mods.basemod.LevBlock;
+import utils.containers.pos.Position;
+
+public final class LightEngine {
+ private final static int DX[] = { 1, -1, 0, 0, 0, 0 };
+ private final static int DY[] = { 0, 0, 1, -1, 0, 0 };
+ private final static int DZ[] = { 0, 0, 0, 0, 1, -1 };
+ private final static int DOWN = 5;
+
+ private final ChunkContainer cont;
+ private final ThreadLocal<Ctx> ctx = ThreadLocal.withInitial(() -> new Ctx());
+
+ public LightEngine ( ChunkContainer cont ) {
+  this.cont = cont;
+ }
+
+ public static int emission ( LevBlock b ) {
+  if ( b == null || b.getParam() == null ) {
+   return 0;
+  }
+  Object v = b.getParam().get("light");
+  if ( v == null ) {
+   return 0;
+  }
+  try {
+   return Math.max(0, Math.min(15, Integer.parseInt(v.toString())));
+  } catch ( NumberFormatException ex ) {
+   return 0;
+  }
+ }
+
+ public void update ( Chunk c, int x, int y, int z, LevBlock old, LevBlock block ) {
+  if ( c.isGenerating() || c.getId() == null ) {// the generator lights whole chunks when it is done
+   return;
+  }
+  Ctx t = ctx.get();
+  t.reset(null);
+  int bx = c.getId().gX() * 16 + x;
+  int by = c.getId().gY() * 16 + y;
+  int bz = c.getId().gZ() * 256 + z;
+
+  int cur = c.getBlockLight(x, y, z);
+  int em = emission(block);
+  if ( cur > 0 ) {
+   c.setBlockLight(x, y, z, 0);
+   t.rem.push(bx, by, bz, cur);
+   unpropagate(t, false);
+  }
+  if ( em > 0 ) {
+   c.setBlockLight(x, y, z, em);
+   t.add.push(bx, by, bz, em);
+  }
+  if ( block == null ) {
+   neighbours(t, false, bx, by, bz);
+  }
+  propagate(t, false);
+
+  cur = c.getSkyLight(x, y, z);
+  if ( block != null ) {
+   if ( cur > 0 ) {
+    c.setSkyLight(x, y, z, 0);
+    t.rem.push(bx, by, bz, cur);
+    unpropagate(t, true);
+   }
+  } else {
+   if ( z == 255 ) {
+    c.setSkyLight(x, y, z, 15);
+    t.add.push(bx, by, bz, 15);
+   }
+   neighbours(t, true, bx, by, bz);
+  }
+  propagate(t, true);
+  t.reset(null);
+ }
+
+ public void light ( Collection<Chunk> list ) {
+  list.parallelStream().
+     forEach(( c ) -> {
+      lightChunk(c);
+     });
+  Ctx t = ctx.get();
+  for ( Chunk c : list ) {
+   t.reset(null);
+   seams(t, c, true);
+   seams(t, c, false);
+  }
+  t.reset(null);
+ }
+
+ public void lightChunk ( Chunk c ) {
+  Ctx t = ctx.get();
+  t.reset(c);
+  int ox = c.getId().gX() * 16;
+  int oy = c.getId().gY() * 16;
+  int oz = c.getId().gZ() * 256;
+
+  for ( int x = 0 ; x < 16 ; x++ ) {
+   for ( int y = 0 ; y < 16 ; y++ ) {
+    for ( int z = c.getTop(x, y) ; z >= 0 ; z-- ) {
+     c.setSkyLight(x, y, z, 0);
+    }
+   }
+  }
+  for ( int x = 0 ; x < 16 ; x++ ) {
+   for ( int y = 0 ; y < 16 ; y++ ) {
+    int top = c.getTop(x, y);
+    int m = top;
+    for ( int d = 0 ; d < 4 ; d++ ) {
+     int nx = x + DX[d];
+     int ny = y + DY[d];
+     if ( nx >= 0 && nx < 16 && ny >= 0 && ny < 16 ) {
+      m = Math.max(m, c.getTop(nx, ny));
+     }
+    }
+    for ( int z = top + 1 ; z <= m && z < 256 ; z++ ) {
+     t.add.push(ox + x, oy + y, oz + z, 15);
+    }
+   }
+  }
+  propagate(t, true);
+
+  c.forEach(( x, y, z, b ) -> {
+   int em = emission(b);
+   if ( em > 0 ) {
+    c.setBlockLight(x, y, z, em);
+    t.add.push(ox + x, oy + y, oz + z, em);
+   }
+  });
+  propagate(t, false);
+  c.setLit(true);
+  t.reset(null);
+ }
+
+ private void seams ( Ctx t, Chunk c, boolean sky ) {
+  int ox = c.getId().gX() * 16;
+  int oy = c.getId().gY() * 16;
+  int oz = c.getId().gZ() * 256;
+  for ( int i = 0 ; i < 16 ; i++ ) {
+   for ( int z = 0 ; z < 256 ; z++ ) {
+    seam(t, c, sky, ox + i, oy, oz + z);
+    seam(t, c, sky, ox + i, oy + 15, oz + z);
+    seam(t, c, sky, ox, oy + i, oz + z);
+    seam(t, c, sky, ox + 15, oy + i, oz + z);
+   }
+  }
+  propagate(t, sky);
+ }
+
+ private void seam ( Ctx t, Chunk c, boolean sky, int x, int y, int z ) {
+  int l = get(c, sky, x, y, z);
+  if ( l > 1 ) {
+   t.add.push(x, y, z, l);
+  }
+ }
+
+ private void neighbours ( Ctx t, boolean sky, int x, int y, int z ) {
+  for ( int d = 0 ; d < 6 ; d++ ) {
+   Chunk c = t.chunk(x + DX[d], y + DY[d], z + DZ[d]);
+   if ( c != null ) {
+    int l = get(c, sky, x + DX[d], y + DY[d], z + DZ[d]);
+    if ( l > (sky ? 0 : 1) ) {
+     t.add.push(x + DX[d], y + DY[d], z + DZ[d], l);
+    }
+   }
+  }
+ }
+
+ private void propagate ( Ctx t, boolean s ) {
+  Queue q = t.add;
+  while ( !q.isEmpty() ) {
+   int x = q.pop();
+   int y = q.pop();
+   int z = q.pop();
+   int l = q.pop();
+   Chunk c = t.chunk(x, y, z);
+   if ( c == null || get(c, s, x, y, z) != l ) {
+    continue;
+   }
+   for ( int d = 0 ; d < 6 ; d++ ) {
+    int nx = x + DX[d];
+    int ny = y + DY[d];
+    int nz = z + DZ[d];
+    Chunk nc = t.chunk(nx, ny, nz);
+    if ( nc == null || nc.getBlock(nx & 15, ny & 15, nz & 255) != null ) {
+     continue;
+    }
+    int nl = (s && d == DOWN && l == 15) ? 15 : l - 1;
+    if ( nl > 0 && get(nc, s, nx, ny, nz) < nl ) {
+     set(nc, s, nx, ny, nz, nl);
+     q.push(nx, ny, nz, nl);
+    }
+   }
+  }
+ }
+
+ private void unpropagate ( Ctx t, boolean sky ) {
+  Queue q = t.rem;
+  while ( !q.isEmpty() ) {
+   int x = q.pop();
+   int y = q.pop();
+   int z = q.pop();
+   int l = q.pop();
+   for ( int d = 0 ; d < 6 ; d++ ) {
+    int nx = x + DX[d];
+    int ny = y + DY[d];
+    int nz = z + DZ[d];
+    Chunk nc = t.chunk(nx, ny, nz);
+    if ( nc == null ) {
+     continue;
+    }
+    int nl = get(nc, sky, nx, ny, nz);
+    if ( nl == 0 ) {
+     continue;
+    }
+    if ( nl < l || (sky && d == DOWN && l == 15 && nl == 15) ) {
+     int em = sky ? 0 : emission(nc.getBlock(nx & 15, ny & 15, nz & 255));
+     set(nc, sky, nx, ny, nz, em);
+     if ( em > 0 ) {
+      t.add.push(nx, ny, nz, em);
+     }
+     q.push(nx, ny, nz, nl);
+    } else {
+     t.add.push(nx, ny, nz, nl);
+    }
+   }
+  }
+ }
+
+ private static int get ( Chunk c, boolean sky, int x, int y, int z ) {
+  return sky ? c.getSkyLight(x & 15, y & 15, z & 255) : c.getBlockLight(x & 15, y & 15, z & 255);
+ }
+
+ private static void set ( Chunk c, boolean sky, int x, int y, int z, int v ) {
+  if ( sky ) {
+   c.setSkyLight(x & 15, y & 15, z & 255, v);
+  } else {
+   c.setBlockLight(x & 15, y & 15, z & 255, v);
+  }
+ }
+
+ private final class Ctx {
+  private final Queue add = new Queue();
+  private final Queue rem = new Queue();
+  private Chunk bound;
+  private Chunk last;
+  private long key = -1;
+
+  private void reset ( Chunk bound ) {
+   this.bound = bound;
+   this.last = null;
+   this.key = -1;
+   add.clear();
+   rem.clear();
+  }
+
+  private Chunk chunk ( int x, int y, int z ) {
+   if ( z < 0 ) {
+    return null;
+   }
+   int cx = x >> 4;
+   int cy = y >> 4;
+   int cz = z >> 8;
+   if ( bound != null ) {
+    return bound.getId().gX() == cx && bound.getId().gY() == cy && bound.getId().gZ() == cz ? bound : null;
+   }
+   long k = Position.key(cx, cy, cz);
+   if ( k != key ) {
+    key = k;
+    last = cont.getLoadedChunk(cx, cy, cz);
+    if ( last != null ) {
+     cont.edit(cx, cy, cz);
+    }
+   }
+   return last;
+  }
+ }
+
+ private static final class Queue {
+  private int data[] = new int[1024];
+  private int head, tail;
+
+  private void push ( int x, int y, int z, int l ) {
+   if ( tail - head + 4 > data.length ) {
+    int t[] = new int[data.length * 2];
+    for ( int i = head ; i < tail ; i++ ) {
+     t[i - head] = data[i & (data.length - 1)];
+    }
+    tail -= head;
+    head = 0;
+    data = t;
+   }
+   int m = data.length - 1;
+   data[tail & m] = x;
+   data[(tail + 1) & m] = y;
+   data[(tail + 2) & m] = z;
+   data[(tail + 3) & m] = l;
+   tail += 4;
+  }
+
+  private int pop () {
+   return data[head++ & (data.length - 1)];
+  }
+
+  private boolean isEmpty () {
+   return head == tail;
+  }
+
+  private void clear () {
+   head = 0;
+   tail = 0;
+  }
+ }
+}
@@ -0,0 +1,94 @@
+package level.chunk;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import static main.Main.LOG;
+import utils.AtomicFile;
+import utils.containers.json.JSONObject;
+import utils.containers.pos.RegionPos;
+
+// Last consistent checkpoint: level metadata plus the header version and size of every region file it covers
+public final class Manifest {
+ public final static String FILE = "manifest.json";
+
+ private final Map<RegionPos, long[]> regions = new ConcurrentHashMap<>();// version, length
+ private volatile JSONObject meta = new JSONObject();
+ private long checkpoint;
+
+ public void setMeta ( JSONObject meta ) {
+  this.meta = meta;
+ }
+
+ // The version is the one committed to the region file's header
+ public void update ( RegionPos pos, long version, long length ) {
+  regions.compute(pos, ( k, v ) -> v != null && v[0] > version ? v : new long[]{ version, length });
+ }
+
+ public long getVersion ( RegionPos pos ) {
+  long t[] = regions.get(pos);
+  return t == null ? 0 : t[0];
+ }
+
+ public long getCheckpoint () {
+  return checkpoint;
+ }
+
+ public synchronized void save ( String dir ) throws IOException {
+  JSONObject r = new JSONObject();
+  regions.forEach(( k, v ) -> {
+   JSONObject t = new JSONObject();
+   t.put("x", k.gX());
+   t.put("y", k.gY());
+   t.put("version", v[0]);
+   t.put("length", v[1]);
+   r.put(k.getName(), t);
+  });
+  JSONObject o = new JSONObject();
+  o.put("checkpoint", checkpoint + 1);
+  o.put("time", System.currentTimeMillis());
+  o.put("level", meta);
+  o.put("regions", r);
+  AtomicFile.write(new File(dir + FILE), o.toString().getBytes("UTF-8"));
+  checkpoint++;
+ }
+
+ public synchronized void clear () {
+  regions.clear();
+  meta = new JSONObject();
+  checkpoint = 0;
+ }
+
+ public synchronized void load ( String dir ) {
+  JSONObject m = meta;
+  clear();
+  meta = m;
+  File f = new File(dir + FILE);
+  if ( !f.canRead() ) {
+   return;
+  }
+  try {
+   JSONObject o = new JSONObject(f.getPath());
+   checkpoint = o.optLong("checkpoint");
+   JSONObject r = o.getJSONObject("regions");
+   for ( String name : r.keySet() ) {
+    JSONObject t = r.getJSONObject(name);
+    long version = t.optLong("version");
+    regions.put(new RegionPos(t.getInt("x"), t.getInt("y")), new long[]{ version, t.optLong("length") });
+    File rf = new File(dir + name);
+    long v = rf.exists() ? RegionFile.readVersion(rf) : 0;
+    if ( !rf.exists() ) {
+     LOG.addW("Region " + name + " from checkpoint " + checkpoint + " is missing");
+    } else if ( v < 0 ) {
+     LOG.addE("Region " + name + " has no intact header");
+    } else if ( v < version ) {
+     LOG.addE("Region " + name + " is at version " + v + ", older than " + version + " in checkpoint " + checkpoint + ", chunks saved since are lost");
+    } else if ( v > version ) {
+     LOG.addD("Region " + name + " changed after checkpoint " + checkpoint + ", journal replay will reconcile it");
+    }
+   }
+  } catch ( Exception ex ) {
+   LOG.addE(ex);
+  }
+ }
+}
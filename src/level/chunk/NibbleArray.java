@@ -0,0 +1,39 @@
+package level.chunk;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public final class NibbleArray implements Serializable {
+ private final byte data[];
+ private transient volatile boolean shared;// Referenced by a snapshot, copy before writing
+
+ public NibbleArray ( int size, int fill ) {
+  this.data = new byte[size >> 1];
+  Arrays.fill(data, (byte) (fill | (fill << 4)));
+ }
+
+ public NibbleArray ( NibbleArray o ) {
+  this.data = o.data.clone();
+ }
+
+ public int get ( int i ) {
+  return (data[i >> 1] >> ((i & 1) << 2)) & 15;
+ }
+
+ public void set ( int i, int v ) {
+  int sh = (i & 1) << 2;
+  data[i >> 1] = (byte) ((data[i >> 1] & ~(15 << sh)) | ((v & 15) << sh));
+ }
+
+ public boolean isShared () {
+  return shared;
+ }
+
+ public void share () {
+  shared = true;
+ }
+
+ public long getMemory () {
+  return 16 + data.length;
+ }
+}
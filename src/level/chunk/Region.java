@@ -2,39 +2,192 @@ package level.chunk;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import utils.containers.pos.*;
 
-public class Region implements Serializable {
- private final Map<ChunkPos, Chunk> map = new HashMap<>();
+public class Region implements Serializable, Chunk.Allocator {
+ private final AtomicReferenceArray<Chunk> map = new AtomicReferenceArray<>(RegionFile.CHUNKS);// Lock-free reads
+ private final AtomicReferenceArray<Chunk> empty = new AtomicReferenceArray<>(RegionFile.CHUNKS);// Placeholders, one per slot
+ private final long pop[] = new long[RegionFile.CHUNKS / 64];// Allocated chunks, guarded by this
+ private final long broken[] = new long[RegionFile.CHUNKS / 64];// Records that failed to load, guarded by this
  private final RegionPos pos;
+ private transient volatile boolean used = true;
+ private transient Chunk.Listener listener;
+ private transient AtomicLong account;// Resident total its chunks' memory is charged to, guarded by this
 
  public Region ( RegionPos pox ) {
 //  this.dir = main.Main.DIR + "saves/" + nm + "/rg/";
 //  fl = "region" + x + "" + y + ".rg";
 
   this.pos = pox;
-  for ( int ix = 0 ; ix < 8 ; ix++ ) {
-   for ( int iy = 0 ; iy < 8 ; iy++ ) {
-    for ( int iz = 0 ; iz < 8 ; iz++ ) {
-     map.put(new ChunkPos(pos.gX() * 8 + ix, pos.gY() * 8 + iy, iz), new Chunk(new ChunkPos(pos.gX() * 8 + ix, pos.gY() * 8 + iy, iz)));
-    }
-   }
-  }
  }
 
  public RegionPos getPos () {
   return pos;
  }
 
+ public long key () {
+  return pos.key();
+ }
+
  public String getName () {
   return pos.getName();
  }
 
  public boolean contains ( ChunkPos pos ) {
-  return this.map.containsKey(pos);
+  return contains(pos.gX(), pos.gY(), pos.gZ());
+ }
+
+ public boolean contains ( int x, int y, int z ) {
+  return (x >> 3) == pos.gX() && (y >> 3) == pos.gY() && z >= 0 && z < 8;
  }
 
  public Chunk getChunk ( ChunkPos pos ) {
-  return this.map.get(pos);
+  return getChunk(pos.gX(), pos.gY(), pos.gZ());
+ }
+
+ public Chunk getChunk ( int x, int y, int z ) {
+  if ( !contains(x, y, z) ) {
+   return null;
+  }
+  int i = RegionFile.index(x, y, z);
+  Chunk t = map.get(i);
+  return t == null ? placeholder(i, x, y, z) : t;
+ }
+
+ // Made on the first read of the slot, later reads of air allocate nothing
+ private Chunk placeholder ( int i, int x, int y, int z ) {
+  Chunk t = empty.get(i);
+  if ( t == null ) {
+   t = new Chunk.Empty(new ChunkPos(x, y, z), this);
+   if ( !empty.compareAndSet(i, null, t) ) {
+    t = empty.get(i);
+   }
+  }
+  return t;
+ }
+
+ public Chunk getChunk ( int i ) {
+  return map.get(i);
+ }
+
+ public Chunk getChunkForWrite ( int x, int y, int z ) {
+  if ( !contains(x, y, z) ) {
+   return null;
+  }
+  int i = RegionFile.index(x, y, z);
+  Chunk t = map.get(i);
+  return t != null ? t : allocate(i, x, y, z);
+ }
+
+ // Writes through an empty slot land here
+ @Override
+ public Chunk allocate ( ChunkPos pos ) {
+  return getChunkForWrite(pos.gX(), pos.gY(), pos.gZ());
+ }
+
+ private synchronized Chunk allocate ( int i, int x, int y, int z ) {
+  Chunk t = map.get(i);
+  if ( t == null ) {
+   t = new Chunk(new ChunkPos(x, y, z));
+   t.setLit(true);// all air, its default light is already right
+   t.setListener(listener);
+   map.set(i, t);
+   pop[i >>> 6] |= 1L << i;
+   t.setAccount(account);
+  }
+  return t;
+ }
+
+ public synchronized void putChunk ( Chunk c ) {
+  int i = RegionFile.index(c.getId().gX(), c.getId().gY(), c.getId().gZ());
+  c.setListener(listener);
+  this.map.set(i, c);
+  pop[i >>> 6] |= 1L << i;
+  c.setAccount(account);
+ }
+
+ // Chunks keep the total up to date as they grow, so nobody has to sum the resident regions
+ public synchronized void setAccount ( AtomicLong account ) {
+  this.account = account;
+  for ( Chunk c : getChunks() ) {
+   c.setAccount(account);
+  }
+ }
+
+ // Takes this region's share back out of the total, returns it
+ public synchronized long discharge () {
+  long t = 0;
+  for ( Chunk c : getChunks() ) {
+   t += c.setAccount(null);
+  }
+  account = null;
+  return t;
+ }
+
+ public synchronized void setListener ( Chunk.Listener listener ) {
+  this.listener = listener;
+  for ( Chunk c : getChunks() ) {
+   c.setListener(listener);
+  }
+ }
+
+ // The on-disk record stays as it is: the slot is never written back or cached
+ public synchronized void setBroken ( int i ) {
+  broken[i >>> 6] |= 1L << i;
+ }
+
+ public synchronized boolean isBroken ( int i ) {
+  return (broken[i >>> 6] & (1L << i)) != 0;
+ }
+
+ public boolean isPopulated ( int i ) {
+  return map.get(i) != null;
+ }
+
+ public synchronized int getPopulated () {
+  int t = 0;
+  for ( long w : pop ) {
+   t += Long.bitCount(w);
+  }
+  return t;
+ }
+
+ public synchronized List<Chunk> getChunks () {
+  List<Chunk> t = new ArrayList<>();
+  for ( int w = 0 ; w < pop.length ; w++ ) {
+   for ( long b = pop[w] ; b != 0 ; b &= b - 1 ) {
+    t.add(map.get(w * 64 + Long.numberOfTrailingZeros(b)));
+   }
+  }
+  return t;
+ }
+
+ public List<Chunk> snapshot () {
+  List<Chunk> t = getChunks();
+  for ( int i = 0 ; i < t.size() ; i++ ) {
+   t.set(i, t.get(i).snapshot());
+  }
+  return t;
+ }
+
+ public void touch () {
+  used = true;
+ }
+
+ public boolean isUsed () {
+  return used;
+ }
+
+ public void clearUsed () {
+  used = false;
+ }
+
+ public long getMemory () {
+  long t = 64;
+  for ( Chunk c : getChunks() ) {
+   t += c.getMemory();
+  }
+  return t;
  }
 }
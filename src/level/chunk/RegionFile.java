@@ -0,0 +1,317 @@
+package level.chunk;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.*;
+import level.chunk.codec.*;
+
+public final class RegionFile implements Closeable {
+ public final static int SECTOR = 4096;
+ public final static int CHUNKS = 8 * 8 * 8;
+ private final static int ENTRY = 16;// offset, length, timestamp
+ private final static int TRAILER = 16;// version, crc, unused
+ private final static int SLOT = (CHUNKS * ENTRY + TRAILER + SECTOR - 1) / SECTOR;
+ private final static int HEADER = 2 * SLOT;// two header slots, a commit overwrites the older one
+ private final static int RECORD = 5;// codec id, raw length
+ private final static int ZLIB = 0x78;// records written before codecs
+ private final static AtomicLong STAMP = new AtomicLong();// timestamps only increase, they tag cached copies
+
+ private final File path;
+ private final Object saving = new Object();
+ private RandomAccessFile file;
+ private final int offset[] = new int[CHUNKS];
+ private final int length[] = new int[CHUNKS];
+ private final long time[] = new long[CHUNKS];
+ private final BitSet used = new BitSet();
+ private final BitSet freed = new BitSet();// still referenced by the committed header
+ private long version;
+ private boolean dirty;
+ private volatile Codec codec = Codecs.LZ;
+
+ public RegionFile ( File f ) throws IOException {
+  this.path = f;
+  open();
+ }
+
+ private void open () throws IOException {
+  this.file = new RandomAccessFile(path, "rw");
+  if ( file.length() < (long) HEADER * SECTOR ) {
+   file.setLength((long) HEADER * SECTOR);
+  }
+  load();
+ }
+
+ // Reads the newest intact header slot, anything staged after it is dropped
+ private void load () throws IOException {
+  byte h[] = new byte[SLOT * SECTOR];
+  byte o[] = new byte[SLOT * SECTOR];
+  long v = readSlot(file, 0, h);
+  long w = readSlot(file, 1, o);
+  if ( w > v ) {
+   v = w;
+   h = o;
+  }
+  if ( v < 0 ) {
+   throw new IOException("Region " + path.getName() + " has no intact header");
+  }
+  version = v;
+  dirty = false;
+  used.clear();
+  freed.clear();
+  used.set(0, HEADER);
+
+  DataInputStream in = new DataInputStream(new ByteArrayInputStream(h));
+  long max = 0;
+  for ( int i = 0 ; i < CHUNKS ; i++ ) {
+   offset[i] = in.readInt();
+   length[i] = in.readInt();
+   time[i] = in.readLong();
+   if ( offset[i] != 0 ) {
+    used.set(offset[i], offset[i] + sectors(length[i]));
+   }
+   max = Math.max(max, time[i]);
+  }
+  STAMP.accumulateAndGet(max, Math::max);
+ }
+
+ // Version of the slot, 0 if it was never written, -1 if it is torn
+ private static long readSlot ( RandomAccessFile f, int k, byte h[] ) throws IOException {
+  long at = (long) k * SLOT * SECTOR;
+  int n = (int) Math.max(0, Math.min(h.length, f.length() - at));
+  f.seek(at);
+  f.readFully(h, 0, n);
+  DataInputStream in = new DataInputStream(new ByteArrayInputStream(h, CHUNKS * ENTRY, TRAILER));
+  long v = in.readLong();
+  int crc = in.readInt();
+  if ( v == 0 && crc == 0 ) {
+   for ( int i = 0 ; i < CHUNKS * ENTRY ; i++ ) {
+    if ( h[i] != 0 ) {
+     return -1;
+    }
+   }
+   return 0;
+  }
+  return crc == crc(h) ? v : -1;
+ }
+
+ private static int crc ( byte h[] ) {
+  CRC32 c = new CRC32();
+  c.update(h, 0, CHUNKS * ENTRY + 8);
+  return (int) c.getValue();
+ }
+
+ // Committed version of a region file without opening it for writing, -1 if no header is intact
+ public static long readVersion ( File f ) {
+  try ( RandomAccessFile t = new RandomAccessFile(f, "r") ) {
+   byte h[] = new byte[SLOT * SECTOR];
+   return Math.max(readSlot(t, 0, h), readSlot(t, 1, h));
+  } catch ( IOException ex ) {
+   return -1;
+  }
+ }
+
+ public static boolean isLegacy ( File f ) {
+  try ( InputStream in = new FileInputStream(f) ) {
+   return in.read() == 0x1f && in.read() == 0x8b;
+  } catch ( IOException ex ) {
+   return false;
+  }
+ }
+
+ public void setCodec ( Codec codec ) {
+  this.codec = codec;
+ }
+
+ public Codec getCodec () {
+  return codec;
+ }
+
+ public static int index ( int x, int y, int z ) {
+  return (x & 7) | ((y & 7) << 3) | ((z & 7) << 6);
+ }
+
+ public synchronized boolean contains ( int i ) {
+  return offset[i] != 0;
+ }
+
+ public synchronized long getTimestamp ( int i ) {
+  return time[i];
+ }
+
+ public synchronized long getVersion () {
+  return version;
+ }
+
+ public synchronized byte[] read ( int i ) throws IOException {
+  if ( offset[i] == 0 ) {
+   return null;
+  }
+  byte t[] = new byte[length[i]];
+  file.seek((long) offset[i] * SECTOR);
+  file.readFully(t);
+  return t;
+ }
+
+ // Copy on write: the record goes to free sectors, the old ones stay until the header is committed
+ public synchronized void write ( int i, byte data[] ) throws IOException {
+  int need = sectors(data.length);
+  int pos = allocate(need);
+  used.set(pos, pos + need);
+  file.seek((long) pos * SECTOR);
+  file.write(data);
+  release(i);
+  setEntry(i, pos, data.length, STAMP.incrementAndGet());
+ }
+
+ public synchronized void remove ( int i ) throws IOException {
+  if ( offset[i] != 0 ) {
+   release(i);
+   setEntry(i, 0, 0, 0);
+  }
+ }
+
+ public Chunk readChunk ( int i ) throws IOException {
+  byte t[] = read(i);
+  return t == null ? null : decode(t, 0);
+ }
+
+ public void writeChunk ( Chunk c ) throws IOException {
+  write(index(c.getId().gX(), c.getId().gY(), c.getId().gZ()), encode(c, codec, 0));
+ }
+
+ // Record: codec id, raw length, payload; head bytes are left free for the caller
+ public static byte[] encode ( Chunk c, Codec k, int head ) throws IOException {
+  ByteArrayOutputStream t = new ByteArrayOutputStream(16384);
+  try ( ObjectOutputStream out = new ObjectOutputStream(t) ) {
+   out.writeObject(c);
+  }
+  byte raw[] = t.toByteArray();
+  byte p[] = k.encode(raw, raw.length);
+  byte r[] = new byte[head + RECORD + p.length];
+  r[head] = (byte) k.id();
+  r[head + 1] = (byte) (raw.length >>> 24);
+  r[head + 2] = (byte) (raw.length >>> 16);
+  r[head + 3] = (byte) (raw.length >>> 8);
+  r[head + 4] = (byte) raw.length;
+  System.arraycopy(p, 0, r, head + RECORD, p.length);
+  return r;
+ }
+
+ public static Chunk decode ( byte t[], int off ) throws IOException {
+  InputStream in;
+  if ( (t[off] & 255) == ZLIB ) {
+   in = new InflaterInputStream(new ByteArrayInputStream(t, off, t.length - off));
+  } else {
+   Codec c = Codecs.get(t[off]);
+   if ( c == null || t.length - off < RECORD ) {
+    throw new IOException("Unknown codec " + t[off]);
+   }
+   int raw = ((t[off + 1] & 255) << 24) | ((t[off + 2] & 255) << 16) | ((t[off + 3] & 255) << 8) | (t[off + 4] & 255);
+   in = new ByteArrayInputStream(c.decode(t, off + RECORD, t.length - off - RECORD, raw));
+  }
+  try ( ObjectInputStream oin = new ObjectInputStream(in) ) {
+   return (Chunk) oin.readObject();
+  } catch ( ClassNotFoundException ex ) {
+   throw new IOException(ex);
+  }
+ }
+
+ // Stages the batch and commits it, a crash leaves either the old or the new header intact
+ public void atomic ( Batch b ) throws IOException {
+  synchronized ( saving ) {
+   try {
+    b.write(this);
+   } catch ( IOException | RuntimeException ex ) {
+    synchronized ( this ) {
+     load();
+    }
+    throw ex;
+   }
+   flush();
+  }
+ }
+
+ public synchronized long length () throws IOException {
+  return file.length();
+ }
+
+ // Commit: records are synced before the header that points at them, which goes to the older slot
+ public void flush () throws IOException {
+  synchronized ( saving ) {
+   synchronized ( this ) {
+    if ( !dirty ) {
+     return;
+    }
+    file.getFD().sync();
+    ByteArrayOutputStream t = new ByteArrayOutputStream(SLOT * SECTOR);
+    DataOutputStream out = new DataOutputStream(t);
+    for ( int i = 0 ; i < CHUNKS ; i++ ) {
+     out.writeInt(offset[i]);
+     out.writeInt(length[i]);
+     out.writeLong(time[i]);
+    }
+    out.writeLong(version + 1);
+    out.writeInt(0);
+    out.writeInt(0);
+    byte h[] = t.toByteArray();
+    int crc = crc(h);
+    for ( int k = 0 ; k < 4 ; k++ ) {
+     h[CHUNKS * ENTRY + 8 + k] = (byte) (crc >>> (24 - 8 * k));
+    }
+    file.seek((version + 1) % 2 * SLOT * SECTOR);
+    file.write(h);
+    file.getFD().sync();
+    version++;
+    dirty = false;
+    used.andNot(freed);
+    freed.clear();
+   }
+  }
+ }
+
+ @Override
+ public void close () throws IOException {
+  try {
+   flush();
+  } finally {
+   synchronized ( this ) {
+    file.close();
+   }
+  }
+ }
+
+ private int allocate ( int need ) {
+  int pos = HEADER;
+  while ( true ) {
+   pos = used.nextClearBit(pos);
+   int end = used.nextSetBit(pos);
+   if ( end < 0 || end - pos >= need ) {
+    return pos;
+   }
+   pos = end;
+  }
+ }
+
+ private void release ( int i ) {
+  if ( offset[i] != 0 ) {
+   freed.set(offset[i], offset[i] + sectors(length[i]));
+  }
+ }
+
+ private void setEntry ( int i, int pos, int len, long t ) {
+  offset[i] = pos;
+  length[i] = len;
+  time[i] = t;
+  dirty = true;
+ }
+
+ private static int sectors ( int len ) {
+  return (len + SECTOR - 1) / SECTOR;
+ }
+
+ public interface Batch {
+
+  public void write ( RegionFile f ) throws IOException;
+ }
+}
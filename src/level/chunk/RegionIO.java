@@ -0,0 +1,188 @@
+package level.chunk;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Function;
+import utils.containers.pos.RegionPos;
+
+public final class RegionIO {
+ public final static int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+ public final static int QUEUE = 256;
+ public final static int WAIT = 20;// ms a caller waits for room before queueing anyway
+
+ private final ThreadPoolExecutor pool;
+ private final Semaphore room;// queued tasks within the soft bound
+ private final Map<RegionPos, CompletableFuture<Region>> loads = new ConcurrentHashMap<>();
+ private final Map<RegionPos, CompletableFuture<Void>> saves = new ConcurrentHashMap<>();
+
+ private final LongAdder loadCount = new LongAdder();
+ private final LongAdder loadTime = new LongAdder();
+ private final LongAdder saveCount = new LongAdder();
+ private final LongAdder saveTime = new LongAdder();
+ private final LongAdder coalesced = new LongAdder();
+ private final LongAdder throttled = new LongAdder();
+ private final LongAdder overflow = new LongAdder();
+ private final AtomicLong maxTime = new AtomicLong();
+
+ public RegionIO () {
+  this(THREADS, QUEUE);
+ }
+
+ public RegionIO ( int threads, int queue ) {
+  AtomicInteger n = new AtomicInteger();
+  this.room = new Semaphore(queue);
+  this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), ( r ) -> {
+   Thread t = new Thread(r, "Region IO " + n.incrementAndGet());
+   t.setDaemon(true);
+   return t;
+  });
+ }
+
+ // Backpressure: past the bound the caller waits a little, then queues anyway; IO never runs on the caller
+ private void submit ( Runnable r, CompletableFuture<?> f ) {
+  boolean permit = room.tryAcquire();
+  if ( !permit ) {
+   throttled.increment();
+   try {
+    permit = room.tryAcquire(WAIT, TimeUnit.MILLISECONDS);
+   } catch ( InterruptedException ex ) {
+    Thread.currentThread().interrupt();
+   }
+   if ( !permit ) {
+    overflow.increment();
+   }
+  }
+  boolean p = permit;
+  try {
+   pool.execute(() -> {
+    try {
+     r.run();
+    } finally {
+     if ( p ) {
+      room.release();
+     }
+    }
+   });
+  } catch ( RejectedExecutionException ex ) {
+   if ( p ) {
+    room.release();
+   }
+   f.completeExceptionally(ex);
+  }
+ }
+
+ public CompletableFuture<Region> load ( RegionPos pos, Function<RegionPos, Region> reader ) {
+  CompletableFuture<Region> f = new CompletableFuture<>();
+  CompletableFuture<Region> t = loads.putIfAbsent(pos, f);
+  if ( t != null ) {
+   coalesced.increment();
+   return t;
+  }
+  submit(() -> {
+   long q = System.nanoTime();
+   try {
+    f.complete(reader.apply(pos));
+   } catch ( Throwable ex ) {
+    f.completeExceptionally(ex);
+   } finally {
+    loads.remove(pos, f);
+    loadCount.increment();
+    loadTime.add(done(q));
+   }
+  }, f);
+  if ( f.isCompletedExceptionally() ) {
+   loads.remove(pos, f);
+  }
+  return f;
+ }
+
+ public CompletableFuture<Void> save ( RegionPos pos, Runnable writer ) {
+  CompletableFuture<Void> f = new CompletableFuture<>();
+  CompletableFuture<Void> t = saves.putIfAbsent(pos, f);
+  if ( t != null ) {
+   coalesced.increment();
+   return t;
+  }
+  submit(() -> {
+   long q = System.nanoTime();
+   saves.remove(pos, f);
+   try {
+    writer.run();
+    f.complete(null);
+   } catch ( Throwable ex ) {
+    f.completeExceptionally(ex);
+   } finally {
+    saveCount.increment();
+    saveTime.add(done(q));
+   }
+  }, f);
+  if ( f.isCompletedExceptionally() ) {
+   saves.remove(pos, f);
+  }
+  return f;
+ }
+
+ public int getQueueDepth () {
+  return pool.getQueue().size();
+ }
+
+ public int getActive () {
+  return pool.getActiveCount();
+ }
+
+ public long getLoads () {
+  return loadCount.sum();
+ }
+
+ public long getSaves () {
+  return saveCount.sum();
+ }
+
+ public long getCoalesced () {
+  return coalesced.sum();
+ }
+
+ public long getThrottled () {
+  return throttled.sum();
+ }
+
+ public long getOverflow () {
+  return overflow.sum();
+ }
+
+ public double getAvgLoadMs () {
+  long n = loadCount.sum();
+  return n == 0 ? 0 : loadTime.sum() / 1e6 / n;
+ }
+
+ public double getAvgSaveMs () {
+  long n = saveCount.sum();
+  return n == 0 ? 0 : saveTime.sum() / 1e6 / n;
+ }
+
+ public double getMaxMs () {
+  return maxTime.get() / 1e6;
+ }
+
+ public void shutdown () {
+  pool.shutdown();
+  try {
+   pool.awaitTermination(1, TimeUnit.MINUTES);
+  } catch ( InterruptedException ex ) {
+   Thread.currentThread().interrupt();
+  }
+ }
+
+ @Override
+ public String toString () {
+  return String.format("Region IO: queue %d, active %d, loads %d (avg %.2f ms), saves %d (avg %.2f ms), max %.2f ms, coalesced %d, throttled %d, overflow %d",
+                       getQueueDepth(), getActive(), getLoads(), getAvgLoadMs(), getSaves(), getAvgSaveMs(), getMaxMs(), getCoalesced(), getThrottled(), getOverflow());
+ }
+
+ private long done ( long started ) {
+  long t = System.nanoTime() - started;
+  maxTime.accumulateAndGet(t, Math::max);
+  return t;
+ }
+}
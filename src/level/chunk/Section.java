@@ -0,0 +1,59 @@
+package level.chunk;
+
+import java.io.Serializable;
+import mods.basemod.LevBlock;
+
+public final class Section implements Serializable {
+ public final static int SIZE = 16 * 16 * 16;
+
+ private final BlockStorage blocks;
+ private int count;// Non-air blocks
+ private transient volatile boolean shared;// Referenced by a snapshot, copy before writing
+
+ public Section () {
+  this.blocks = new BlockStorage(SIZE);
+ }
+
+ public Section ( Section o ) {
+  this.blocks = new BlockStorage(o.blocks);
+  this.count = o.count;
+ }
+
+ public LevBlock get ( int i ) {
+  return blocks.get(i);
+ }
+
+ public LevBlock set ( int i, LevBlock block ) {
+  LevBlock old = blocks.set(i, block);
+  if ( old == null && block != null ) {
+   count++;
+  } else if ( old != null && block == null ) {
+   count--;
+  }
+  return old;
+ }
+
+ public int getCount () {
+  return count;
+ }
+
+ public boolean isEmpty () {
+  return count == 0;
+ }
+
+ public boolean isShared () {
+  return shared;
+ }
+
+ public void share () {
+  shared = true;
+ }
+
+ public BlockStorage getStorage () {
+  return blocks;
+ }
+
+ public long getMemory () {
+  return 16 + blocks.getMemory();
+ }
+}
@@ -0,0 +1,34 @@
+package level.chunk;
+
+import java.util.List;
+import utils.containers.map.LongMap;
+import utils.containers.pos.*;
+
+public final class Snapshot {
+ private final LongMap<Chunk> map = new LongMap<>();// chunk key -> frozen chunk
+ private final long time = System.currentTimeMillis();
+
+ void add ( Chunk c ) {
+  map.put(Position.key(c.getId().gX(), c.getId().gY(), c.getId().gZ()), c);
+ }
+
+ public Chunk getChunk ( ChunkPos pos ) {
+  return getChunk(pos.gX(), pos.gY(), pos.gZ());
+ }
+
+ public Chunk getChunk ( int x, int y, int z ) {
+  return map.get(Position.key(x, y, z));
+ }
+
+ public List<Chunk> getChunks () {
+  return map.values();
+ }
+
+ public int size () {
+  return map.size();
+ }
+
+ public long getTime () {
+  return time;
+ }
+}
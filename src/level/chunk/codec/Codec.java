@@ -0,0 +1,62 @@
+package level.chunk.codec;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+public abstract class Codec {
+ private final LongAdder rawIn = new LongAdder();
+ private final LongAdder packedOut = new LongAdder();
+ private final LongAdder encodeTime = new LongAdder();
+ private final LongAdder decodeBytes = new LongAdder();
+ private final LongAdder decodeTime = new LongAdder();
+
+ public abstract int id ();
+
+ public abstract String name ();
+
+ protected abstract byte[] compress ( byte src[], int len );
+
+ protected abstract void decompress ( byte src[], int off, int len, byte out[] ) throws IOException;
+
+ public byte[] encode ( byte src[], int len ) {
+  long t = System.nanoTime();
+  byte out[] = compress(src, len);
+  encodeTime.add(System.nanoTime() - t);
+  rawIn.add(len);
+  packedOut.add(out.length);
+  return out;
+ }
+
+ public byte[] decode ( byte src[], int off, int len, int raw ) throws IOException {
+  long t = System.nanoTime();
+  byte out[] = new byte[raw];
+  try {
+   decompress(src, off, len, out);
+  } catch ( RuntimeException ex ) {
+   throw new IOException(name() + ": corrupt record", ex);
+  }
+  decodeTime.add(System.nanoTime() - t);
+  decodeBytes.add(raw);
+  return out;
+ }
+
+ public double getRatio () {
+  long t = packedOut.sum();
+  return t == 0 ? 0 : (double) rawIn.sum() / t;
+ }
+
+ public double getEncodeMBs () {
+  long t = encodeTime.sum();
+  return t == 0 ? 0 : rawIn.sum() / 1048576.0 / (t / 1e9);
+ }
+
+ public double getDecodeMBs () {
+  long t = decodeTime.sum();
+  return t == 0 ? 0 : decodeBytes.sum() / 1048576.0 / (t / 1e9);
+ }
+
+ @Override
+ public String toString () {
+  return String.format("%s: ratio %.2f, encode %.1f MB/s, decode %.1f MB/s", name(), getRatio(), getEncodeMBs(), getDecodeMBs());
+ }
+}
@@ -0,0 +1,50 @@
+package level.chunk.codec;
+
+import java.util.zip.Deflater;
+import static main.Main.LOG;
+
+public final class Codecs {
+ public final static RawCodec RAW = new RawCodec();
+ public final static LZCodec LZ = new LZCodec();
+ public final static DeflateCodec DEFLATE = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+ private final static Codec ALL[] = { RAW, DEFLATE, LZ };
+
+ private Codecs () {
+ }
+
+ public static Codec get ( int id ) {
+  for ( Codec c : ALL ) {
+   if ( c.id() == id ) {
+    return c;
+   }
+  }
+  return null;
+ }
+
+ // "raw", "lz", "deflate" or "deflate:<level>"
+ public static Codec forName ( String name ) {
+  if ( name == null || "lz".equals(name) ) {
+   return LZ;
+  }
+  if ( "raw".equals(name) ) {
+   return RAW;
+  }
+  if ( "deflate".equals(name) ) {
+   return DEFLATE;
+  }
+  if ( name.startsWith("deflate:") ) {
+   try {
+    return new DeflateCodec(Math.max(0, Math.min(9, Integer.parseInt(name.substring(8)))));
+   } catch ( NumberFormatException ex ) {
+    LOG.addW("Bad codec level " + name);
+    return DEFLATE;
+   }
+  }
+  LOG.addW("Unknown codec " + name + ", using lz");
+  return LZ;
+ }
+
+ public static Codec[] getAll () {
+  return ALL.clone();
+ }
+}
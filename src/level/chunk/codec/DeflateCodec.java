@@ -0,0 +1,65 @@
+package level.chunk.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.*;
+
+public final class DeflateCodec extends Codec {
+ public final static int ID = 1;
+
+ private final int level;
+
+ public DeflateCodec ( int level ) {
+  this.level = level;
+ }
+
+ @Override
+ public int id () {
+  return ID;
+ }
+
+ @Override
+ public String name () {
+  return level < 0 ? "deflate" : "deflate:" + level;
+ }
+
+ @Override
+ protected byte[] compress ( byte src[], int len ) {
+  Deflater d = new Deflater(level);
+  try {
+   d.setInput(src, 0, len);
+   d.finish();
+   byte out[] = new byte[len + (len >> 3) + 64];
+   int n = 0;
+   while ( !d.finished() ) {
+    if ( n == out.length ) {
+     out = Arrays.copyOf(out, out.length * 2);
+    }
+    n += d.deflate(out, n, out.length - n);
+   }
+   return Arrays.copyOf(out, n);
+  } finally {
+   d.end();
+  }
+ }
+
+ @Override
+ protected void decompress ( byte src[], int off, int len, byte out[] ) throws IOException {
+  Inflater f = new Inflater();
+  try {
+   f.setInput(src, off, len);
+   int n = 0;
+   while ( n < out.length && !f.finished() ) {
+    int t = f.inflate(out, n, out.length - n);
+    if ( t == 0 && (f.needsInput() || f.needsDictionary()) ) {
+     throw new IOException(name() + ": truncated record");
+    }
+    n += t;
+   }
+  } catch ( DataFormatException ex ) {
+   throw new IOException(ex);
+  } finally {
+   f.end();
+  }
+ }
+}
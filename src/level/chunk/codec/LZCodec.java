@@ -0,0 +1,138 @@
+package level.chunk.codec;
+
+import java.util.Arrays;
+
+// LZ4 block format: token, literals, 2-byte offset, no framing
+public final class LZCodec extends Codec {
+ public final static int ID = 2;
+ private final static int MIN_MATCH = 4;
+ private final static int HASH_BITS = 14;
+ private final static int MAX_OFFSET = 65535;
+ private final static int LAST_LITERALS = 5;
+ private final static int MF_LIMIT = 12;
+ private final static ThreadLocal<int[]> TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+ @Override
+ public int id () {
+  return ID;
+ }
+
+ @Override
+ public String name () {
+  return "lz";
+ }
+
+ @Override
+ protected byte[] compress ( byte src[], int len ) {
+  byte out[] = new byte[len + len / 255 + 16];
+  int table[] = TABLE.get();
+  Arrays.fill(table, -1);
+  int anchor = 0;
+  int o = 0;
+  int limit = len - MF_LIMIT;
+  int i = 0;
+  while ( i < limit ) {
+   int seq = readInt(src, i);
+   int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+   int ref = table[h];
+   table[h] = i;
+   if ( ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != seq ) {
+    i++;
+    continue;
+   }
+   while ( i > anchor && ref > 0 && src[i - 1] == src[ref - 1] ) {
+    i--;
+    ref--;
+   }
+   int m = MIN_MATCH;
+   while ( i + m < len - LAST_LITERALS && src[i + m] == src[ref + m] ) {
+    m++;
+   }
+   o = sequence(out, o, src, anchor, i - anchor, i - ref, m);
+   i += m;
+   anchor = i;
+  }
+  o = sequence(out, o, src, anchor, len - anchor, 0, 0);
+  return Arrays.copyOf(out, o);
+ }
+
+ @Override
+ protected void decompress ( byte src[], int off, int len, byte out[] ) {
+  int i = off;
+  int end = off + len;
+  int o = 0;
+  while ( i < end ) {
+   int tok = src[i++] & 255;
+   int lit = tok >>> 4;
+   if ( lit == 15 ) {
+    int b;
+    do {
+     b = src[i++] & 255;
+     lit += b;
+    } while ( b == 255 );
+   }
+   System.arraycopy(src, i, out, o, lit);
+   i += lit;
+   o += lit;
+   if ( i >= end ) {
+    break;
+   }
+   int d = (src[i] & 255) | ((src[i + 1] & 255) << 8);
+   i += 2;
+   int m = tok & 15;
+   if ( m == 15 ) {
+    int b;
+    do {
+     b = src[i++] & 255;
+     m += b;
+    } while ( b == 255 );
+   }
+   m += MIN_MATCH;
+   int ref = o - d;
+   if ( d == 0 || ref < 0 ) {
+    throw new IllegalStateException("Bad offset " + d + " at " + o);
+   }
+   if ( d >= m ) {
+    System.arraycopy(out, ref, out, o, m);
+    o += m;
+   } else {
+    for ( int k = 0 ; k < m ; k++ ) {// overlapping run
+     out[o++] = out[ref++];
+    }
+   }
+  }
+  if ( o != out.length ) {
+   throw new IllegalStateException("Decoded " + o + " of " + out.length + " bytes");
+  }
+ }
+
+ private static int sequence ( byte out[], int o, byte src[], int from, int lit, int d, int m ) {
+  int tok = o++;
+  out[tok] = (byte) (Math.min(lit, 15) << 4);
+  o = length(out, o, lit - 15);
+  System.arraycopy(src, from, out, o, lit);
+  o += lit;
+  if ( m == 0 ) {
+   return o;
+  }
+  out[o++] = (byte) d;
+  out[o++] = (byte) (d >>> 8);
+  out[tok] |= (byte) Math.min(m - MIN_MATCH, 15);
+  return length(out, o, m - MIN_MATCH - 15);
+ }
+
+ private static int length ( byte out[], int o, int rest ) {
+  if ( rest < 0 ) {
+   return o;
+  }
+  for ( ; rest >= 255 ; rest -= 255 ) {
+   out[o++] = (byte) 255;
+  }
+  out[o++] = (byte) rest;
+  return o;
+ }
+
+ private static int readInt ( byte b[], int i ) {
+  return (b[i] & 255) | ((b[i + 1] & 255) << 8) | ((b[i + 2] & 255) << 16) | (b[i + 3] << 24);
+ }
+}
@@ -0,0 +1,27 @@
+package level.chunk.codec;
+
+import java.util.Arrays;
+
+public final class RawCodec extends Codec {
+ public final static int ID = 0;
+
+ @Override
+ public int id () {
+  return ID;
+ }
+
+ @Override
+ public String name () {
+  return "raw";
+ }
+
+ @Override
+ protected byte[] compress ( byte src[], int len ) {
+  return Arrays.copyOf(src, len);
+ }
+
+ @Override
+ protected void decompress ( byte src[], int off, int len, byte out[] ) {
+  System.arraycopy(src, off, out, 0, out.length);
+ }
+}
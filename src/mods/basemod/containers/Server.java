@@ -41,6 +41,9 @@ public class Server {
   main.Main.SERVER.getActions().addT("loggerExport", 200, ( ActionEvent e ) -> {
    main.Main.LOG.export("now.log");
   });
+  main.Main.SERVER.getActions().addT("tick", TickScheduler.PERIOD, ( ActionEvent e ) -> {
+   level.tick();
+  });
   
   mods.init();
  }
@@ -10,4 +10,8 @@ public interface BlockHook {
 
  public void blockPlaced ();
 
+ // Scheduled update, see level.UpdateQueue
+ public default void blockUpdate ( int x, int y, int z ) {
+ }
+
 }
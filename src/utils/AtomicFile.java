@@ -0,0 +1,48 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+// Write to a temp file, fsync, rename over the target: readers see the old or the new file, never a torn one
+public final class AtomicFile {
+
+ private AtomicFile () {
+ }
+
+ public static File temp ( File f ) {
+  return new File(f.getPath() + ".tmp");
+ }
+
+ public static void write ( File f, byte data[] ) throws IOException {
+  File tmp = temp(f);
+  try ( FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) ) {
+   ByteBuffer b = ByteBuffer.wrap(data);
+   while ( b.hasRemaining() ) {
+    out.write(b);
+   }
+   out.force(true);
+  }
+  replace(tmp, f);
+ }
+
+ // tmp must already be synced
+ public static void replace ( File tmp, File f ) throws IOException {
+  try {
+   Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  } catch ( AtomicMoveNotSupportedException ex ) {
+   Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+  syncDir(f.getAbsoluteFile().getParentFile());
+ }
+
+ // Makes the rename itself durable; not supported everywhere, so best effort
+ public static void syncDir ( File dir ) {
+  try ( FileChannel t = FileChannel.open(dir.toPath(), StandardOpenOption.READ) ) {
+   t.force(true);
+  } catch ( IOException ex ) {
+   //
+  }
+ }
+}
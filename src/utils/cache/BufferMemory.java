@@ -0,0 +1,88 @@
+package utils.cache;
+
+import java.io.RandomAccessFile;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Portable backend on FileChannel.map; one buffer holds a whole number of segments, so no access spans two
+final class BufferMemory extends Memory {
+ private final ByteBuffer buffers[];
+ private final long per;
+ private final long size;
+
+ BufferMemory ( String name, long size, int align ) throws Exception {
+  size = (size + 0xfffL) & ~0xfffL;
+  this.per = (Integer.MAX_VALUE / align) * (long) align;
+  this.size = size;
+  this.buffers = new ByteBuffer[(int) ((size + per - 1) / per)];
+
+  try ( RandomAccessFile f = new RandomAccessFile(name, "rw") ) {
+   f.setLength(size);
+   FileChannel ch = f.getChannel();
+   for ( int i = 0 ; i < buffers.length ; i++ ) {
+    long start = per * i;
+    buffers[i] = ch.map(FileChannel.MapMode.READ_WRITE, start, Math.min(per, size - start)).order(ByteOrder.nativeOrder());
+   }
+  }
+ }
+
+ private ByteBuffer buffer ( long pos ) {
+  return buffers.length == 1 ? buffers[0] : buffers[(int) (pos / per)];
+ }
+
+ private int index ( long pos ) {
+  return buffers.length == 1 ? (int) pos : (int) (pos % per);
+ }
+
+ @Override
+ public long getLong ( long pos ) {
+  return buffer(pos).getLong(index(pos));
+ }
+
+ @Override
+ public void putLong ( long pos, long value ) {
+  buffer(pos).putLong(index(pos), value);
+ }
+
+ @Override
+ public int getInt ( long pos ) {
+  return buffer(pos).getInt(index(pos));
+ }
+
+ @Override
+ public void putInt ( long pos, int value ) {
+  buffer(pos).putInt(index(pos), value);
+ }
+
+ // Relative bulk access on a duplicate, the shared buffer's position is never touched
+ @Override
+ public void get ( long pos, byte dst[], int off, int len ) {
+  ByteBuffer b = buffer(pos).duplicate();
+  b.position(index(pos));
+  b.get(dst, off, len);
+ }
+
+ @Override
+ public void put ( long pos, byte src[], int off, int len ) {
+  ByteBuffer b = buffer(pos).duplicate();
+  b.position(index(pos));
+  b.put(src, off, len);
+ }
+
+ @Override
+ public long getSize () {
+  return size;
+ }
+
+ @Override
+ public String getName () {
+  return BUFFER;
+ }
+
+ // Mapped buffers can't be unmapped portably, the mapping goes once they are collected
+ @Override
+ public void close () {
+  Arrays.fill(buffers, null);
+ }
+}
@@ -37,16 +37,28 @@ public class CacheTest {
   }
  }
 
- public static void test () {
+ public static void testLarge ( UnsafeMemoryCache cache, int count ) {
+  Random random = new Random(3);
+  for ( int i = 0 ; i < count ; i++ ) {
+   long key = random.nextInt(1 << 10) * MAGIC;
+   if ( random.nextInt(2) == 0 ) {
+    cache.put(key, new byte[100000 + random.nextInt(400000)]);
+   } else {
+    cache.get(key);
+   }
+  }
+ }
+
+ public static void test ( MemoryCacheConfiguration configuration, String backend ) {
   UnsafeMemoryCache cache;
   try {
-   cache = new UnsafeMemoryCache();
+   cache = new UnsafeMemoryCache(configuration, backend);
 
-//   testWrite(cache, WARMUP_COUNT);
-//   testRead(cache, WARMUP_COUNT);
-//   testRead9Write1(cache, WARMUP_COUNT);
+   testWrite(cache, WARMUP_COUNT);
+   testRead(cache, WARMUP_COUNT);
+   testRead9Write1(cache, WARMUP_COUNT);
 
-   String cacheClass = cache.getClass().getSimpleName();
+   String cacheClass = cache.getClass().getSimpleName() + "/" + cache.getBackend();
    long start, end;
 
    start = System.currentTimeMillis();
@@ -64,13 +76,22 @@ public class CacheTest {
    end = System.currentTimeMillis();
    System.out.println(cacheClass + " read-write: " + (end - start));
 
+   start = System.currentTimeMillis();
+   testLarge(cache, RUN_COUNT / 100);
+   end = System.currentTimeMillis();
+   System.out.println(cacheClass + " large: " + (end - start));
+
    cache.close();
   } catch ( Exception ex ) {
-   ex.printStackTrace();
+   System.out.println(backend + ": " + ex);
   }
  }
 
+ // Same image for both backends, the unsafe one needs map0 (--add-opens java.base/sun.nio.ch=ALL-UNNAMED on JDK 9+)
  public static void main ( String[] args ) throws Exception {
-  test();
+  MemoryCacheConfiguration configuration = args.length == 0 ? new MemoryCacheConfiguration()
+                                           : new MemoryCacheConfiguration(Long.parseLong(args[0]) << 20, 200 << 10, "/dev/shm/game-level");
+  test(configuration, Memory.UNSAFE);
+  test(configuration, Memory.BUFFER);
  }
 }
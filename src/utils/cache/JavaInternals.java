@@ -2,10 +2,14 @@ package utils.cache;
 
 import java.lang.reflect.*;
 import java.nio.*;
-import sun.misc.*;
+import sun.misc.Unsafe;
 
 public class JavaInternals {
     private static final Unsafe unsafe;
+    // One cleaner for every allocation, each java.lang.ref.Cleaner runs its own thread;
+    // null cleaner means the static sun.misc.Cleaner.create of older runtimes
+    private static final Object cleaner;
+    private static final Method register;
 
     static {
         try {
@@ -13,6 +17,25 @@ public class JavaInternals {
         } catch (IllegalAccessException e) {
             throw new IllegalStateException(e);
         }
+        // neither is linked at compile time, so this builds with or without sun.misc.Cleaner
+        Object c;
+        Method m;
+        try {
+            Class<?> cls = Class.forName("java.lang.ref.Cleaner");
+            c = cls.getMethod("create").invoke(null);
+            m = cls.getMethod("register", Object.class, Runnable.class);
+        } catch (ClassNotFoundException e) {
+            try {
+                c = null;
+                m = Class.forName("sun.misc.Cleaner").getMethod("create", Object.class, Runnable.class);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        cleaner = c;
+        register = m;
     }
 
     public static Field getField(Class cls, String name) {
@@ -41,9 +64,15 @@ public class JavaInternals {
 
     public static long allocateMemory(long size, Object holder) {
         final long address = unsafe.allocateMemory(size);
-        Cleaner.create(holder, () -> {
+        Runnable free = () -> {
          unsafe.freeMemory(address);
-        });
+        };
+        try {
+            register.invoke(cleaner, holder, free);
+        } catch (ReflectiveOperationException e) {
+            unsafe.freeMemory(address);
+            throw new IllegalStateException(e);
+        }
         return address;
     }
 
@@ -3,11 +3,11 @@ package utils.cache;
 import java.io.RandomAccessFile;
 import java.lang.reflect.*;
 import java.nio.channels.FileChannel;
-import sun.nio.ch.FileChannelImpl;
 
 public class MappedFile {
- private static final Method map0 = JavaInternals.getMethod(FileChannelImpl.class, "map0", int.class, long.class, long.class);
- private static final Method unmap0 = JavaInternals.getMethod(FileChannelImpl.class, "unmap0", long.class, long.class);
+ private static final Class<?> IMPL = impl();// looked up at run time, so building needs no access to sun.nio.ch
+ private static final Method map0 = map0();
+ private static final Method unmap0 = JavaInternals.getMethod(IMPL, "unmap0", long.class, long.class);
 
  private long addr;
  private long size;
@@ -21,7 +21,7 @@ public class MappedFile {
   try {
    f.setLength(size);
    ch = f.getChannel();
-   this.addr = (Long) map0.invoke(ch, 1, 0L, size);
+   this.addr = (Long) (map0.getParameterCount() == 3 ? map0.invoke(ch, 1, 0L, size) : map0.invoke(ch, 1, 0L, size, false));
    this.size = size;
   } finally {
    if ( ch != null ) {
@@ -31,6 +31,23 @@ public class MappedFile {
   }
  }
 
+ // JDK 14 added an isSync flag
+ private static Method map0 () {
+  try {
+   return JavaInternals.getMethod(IMPL, "map0", int.class, long.class, long.class);
+  } catch ( IllegalStateException ex ) {
+   return JavaInternals.getMethod(IMPL, "map0", int.class, long.class, long.class, boolean.class);
+  }
+ }
+
+ private static Class<?> impl () {
+  try {
+   return Class.forName("sun.nio.ch.FileChannelImpl");
+  } catch ( ClassNotFoundException ex ) {
+   throw new IllegalStateException(ex);
+  }
+ }
+
  public void close () {
   if ( addr != 0 ) {
    try {
@@ -0,0 +1,44 @@
+package utils.cache;
+
+// A mapped cache image addressed by offset from its start, same native-order layout for every backend
+public abstract class Memory {
+ public static final String AUTO = "auto";
+ public static final String UNSAFE = "unsafe";
+ public static final String BUFFER = "buffer";
+
+ // Unsafe needs map0 from sun.nio.ch, which only older or opened runtimes expose
+ public static Memory map ( String name, long size, int align, String backend ) throws Exception {
+  if ( !BUFFER.equals(backend) ) {
+   try {
+    return new UnsafeMemory(name, size);
+   } catch ( Exception | LinkageError ex ) {
+    if ( UNSAFE.equals(backend) ) {
+     throw new UnsupportedOperationException("Unsafe cache backend is unavailable: " + ex, ex);
+    }
+   }
+  }
+  return new BufferMemory(name, size, align);
+ }
+
+ public static Memory map ( String name, long size, int align ) throws Exception {
+  return map(name, size, align, System.getProperty("cache.memory", AUTO));
+ }
+
+ public abstract long getLong ( long pos );
+
+ public abstract void putLong ( long pos, long value );
+
+ public abstract int getInt ( long pos );
+
+ public abstract void putInt ( long pos, int value );
+
+ public abstract void get ( long pos, byte dst[], int off, int len );
+
+ public abstract void put ( long pos, byte src[], int off, int len );
+
+ public abstract long getSize ();
+
+ public abstract String getName ();
+
+ public abstract void close ();
+}
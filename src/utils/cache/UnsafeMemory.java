@@ -0,0 +1,61 @@
+package utils.cache;
+
+import sun.misc.Unsafe;
+
+final class UnsafeMemory extends Memory {
+ private static final Unsafe unsafe = JavaInternals.getUnsafe();
+ private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+
+ private final MappedFile mmap;
+ private final long addr;
+
+ UnsafeMemory ( String name, long size ) throws Exception {
+  this.mmap = new MappedFile(name, size);
+  this.addr = mmap.getAddr();
+ }
+
+ @Override
+ public long getLong ( long pos ) {
+  return unsafe.getLong(addr + pos);
+ }
+
+ @Override
+ public void putLong ( long pos, long value ) {
+  unsafe.putLong(addr + pos, value);
+ }
+
+ @Override
+ public int getInt ( long pos ) {
+  return unsafe.getInt(addr + pos);
+ }
+
+ @Override
+ public void putInt ( long pos, int value ) {
+  unsafe.putInt(addr + pos, value);
+ }
+
+ @Override
+ public void get ( long pos, byte dst[], int off, int len ) {
+  unsafe.copyMemory(null, addr + pos, dst, BYTE_ARRAY_OFFSET + off, len);
+ }
+
+ @Override
+ public void put ( long pos, byte src[], int off, int len ) {
+  unsafe.copyMemory(src, BYTE_ARRAY_OFFSET + off, null, addr + pos, len);
+ }
+
+ @Override
+ public long getSize () {
+  return mmap.getSize();
+ }
+
+ @Override
+ public String getName () {
+  return UNSAFE;
+ }
+
+ @Override
+ public void close () {
+  mmap.close();
+ }
+}
@@ -1,62 +1,136 @@
 package utils.cache;
 
-import java.util.concurrent.Semaphore;
-import sun.misc.Unsafe;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
 
 public class UnsafeMemoryCache {
- private static final Unsafe unsafe = JavaInternals.getUnsafe();
- private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
- private static final int WRITE_PERMITS = 1024;
-
- private static final int MAX_KEY_COUNT = 256;
- private static final int KEY_SIZE = 8;
- private static final int KEY_SPACE = MAX_KEY_COUNT * KEY_SIZE;
- private static final int DATA_START = KEY_SPACE * 2;
- private static final int OFFSET = KEY_SPACE + 0;
- private static final int LENGTH = KEY_SPACE + 4;
-
- private final MappedFile mmap;
+ private static final int OPTIMISTIC_TRIES = 2;
+
+ // Segment header: magic, head, tail, end of the older run (0 - not wrapped)
+ private static final int MAGIC = 0x43414332;
+ private static final int HEAD = 4;
+ private static final int TAIL = 8;
+ private static final int END = 12;
+ private static final int DATA_START = 16;
+
+ // Record header in the data log: key, length, part, stamp, total length of the value
+ private static final int KEY = 0;
+ private static final int LENGTH = 8;
+ private static final int PART = 12;
+ private static final int STAMP = 16;
+ private static final int TOTAL = 20;
+ private static final int HEADER = 24;
+
+ private final Memory mem;
  private final int segmentSize;
  private final int segmentMask;
+ private final int extent;// payload per record, larger values are chained over several
+ private final long maxValue;
+ private final AtomicInteger stamps = new AtomicInteger();
  private Segment[] segments;
 
- static final class Segment extends Semaphore {
+ // Readers validate a stamp instead of taking the lock, so a hit writes no shared state
+ static final class Segment extends StampedLock {
   final long start;
+  final int size;
+  final Index index = new Index();
+  int head;
   int tail;
+  int end;
   int count;
 
-  Segment ( long start, int size ) {
-   super(WRITE_PERMITS, true);
+  Segment ( Memory mem, long start, int size, AtomicInteger stamps ) {
    this.start = start;
-   verify(start, size);
+   this.size = size;
+   if ( !verify(mem, stamps) ) {
+    index.clear();
+    count = 0;
+    head = tail = DATA_START;
+    end = 0;
+    mem.putInt(start, MAGIC);
+    store(mem);
+   }
   }
 
-  private void verify ( long start, int size ) {
-   int maxTail = DATA_START;
-   long prevKey = 0;
-   long pos = start;
+  // Rebuilds the index from the log, oldest run first so newer records win
+  private boolean verify ( Memory mem, AtomicInteger stamps ) {
+   if ( mem.getInt(start) != MAGIC ) {
+    return false;
+   }
+   head = mem.getInt(start + HEAD);
+   tail = mem.getInt(start + TAIL);
+   end = mem.getInt(start + END);
+   if ( end == 0 ) {
+    return head >= DATA_START && head <= tail && tail <= size && scan(mem, head, tail, stamps);
+   }
+   return tail >= DATA_START && tail <= head && head <= end && end <= size
+          && scan(mem, head, end, stamps) && scan(mem, DATA_START, tail, stamps);
+  }
 
-   for ( long keysEnd = start + KEY_SPACE ; pos < keysEnd ; pos += KEY_SIZE ) {
-    long key = unsafe.getLong(pos);
-    if ( key <= prevKey ) {
-     break;
+  private boolean scan ( Memory mem, int from, int to, AtomicInteger stamps ) {
+   for ( int pos = from ; pos < to ; ) {
+    int length = mem.getInt(start + pos + LENGTH);
+    int part = mem.getInt(start + pos + PART);
+    if ( length < 0 || length > to - pos - HEADER || part < 0 ) {
+     return false;
     }
-
-    int offset = unsafe.getInt(pos + OFFSET);
-    int length = unsafe.getInt(pos + LENGTH);
-    int newTail = (offset + length + 7) & ~7;
-    if ( offset < DATA_START || length < 0 || newTail > size ) {
-     break;
+    link(mem, indexKey(mem.getLong(start + pos + KEY), part), pos, part);
+    int stamp = mem.getInt(start + pos + STAMP);
+    if ( stamp >= stamps.get() ) {
+     stamps.set(stamp + 1);
     }
+    pos += recordSize(length);
+   }
+   return true;
+  }
+
+  void store ( Memory mem ) {
+   mem.putInt(start + HEAD, head);
+   mem.putInt(start + TAIL, tail);
+   mem.putInt(start + END, end);
+  }
 
-    if ( newTail > maxTail ) {
-     maxTail = newTail;
+  void link ( Memory mem, long ik, int pos, int part ) {
+   int old = index.put(ik, pos);
+   if ( old != 0 && mem.getInt(start + old + PART) == 0 ) {
+    count--;
+   }
+   if ( part == 0 ) {
+    count++;
+   }
+  }
+
+  // Frees room for a record at tail, dropping the oldest records first
+  void reserve ( Memory mem, int size ) {
+   while ( true ) {
+    if ( end == 0 ) {
+     if ( tail + size <= this.size ) {
+      return;
+     }
+     if ( head == tail ) {
+      head = tail = DATA_START;
+      return;
+     }
+     end = tail;
+     tail = DATA_START;
+    }
+    if ( tail + size <= head ) {
+     return;
+    }
+    evict(mem, head);
+    head += recordSize(mem.getInt(start + head + LENGTH));
+    if ( head >= end ) {
+     head = DATA_START;
+     end = 0;
     }
-    prevKey = key;
    }
+  }
 
-   this.tail = maxTail;
-   this.count = (int) (pos - start) >>> 3;
+  private void evict ( Memory mem, int pos ) {
+   int part = mem.getInt(start + pos + PART);
+   if ( index.remove(indexKey(mem.getLong(start + pos + KEY), part), pos) && part == 0 ) {
+    count--;
+   }
   }
  }
 
@@ -65,91 +139,137 @@ public class UnsafeMemoryCache {
  }
 
  public UnsafeMemoryCache ( MemoryCacheConfiguration configuration ) throws Exception {
+  this(configuration, System.getProperty("cache.memory", Memory.AUTO));
+ }
+
+ // Backend is auto, unsafe or buffer; both map the same image layout
+ public UnsafeMemoryCache ( MemoryCacheConfiguration configuration, String backend ) throws Exception {
   long requestedCapacity = configuration.getCapacity();
   long desiredSegmentSize = configuration.getSegmentSize();
   int segmentCount = calculateSegmentCount(requestedCapacity, desiredSegmentSize);
   long segmentSize1 = (requestedCapacity / segmentCount + 31) & ~31L;
 
-  this.mmap = new MappedFile(configuration.getImageFile(), segmentSize1 * segmentCount);
   this.segmentSize = (int) segmentSize1;
   this.segmentMask = segmentCount - 1;
+  this.extent = ((segmentSize - DATA_START) / 4 - HEADER) & ~7;
+  this.maxValue = Math.min(Integer.MAX_VALUE - 8, segmentSize1 * segmentCount / 8);
+  this.mem = Memory.map(configuration.getImageFile(), segmentSize1 * segmentCount, this.segmentSize, backend);
   this.segments = new Segment[segmentCount];
 
   for ( int i = 0 ; i < segmentCount ; i++ ) {
-   segments[i] = new Segment(mmap.getAddr() + segmentSize1 * i, this.segmentSize);
+   segments[i] = new Segment(mem, segmentSize1 * i, this.segmentSize, stamps);
   }
  }
 
  public void close () {
-  mmap.close();
+  mem.close();
   segments = null;
  }
 
+ public String getBackend () {
+  return mem.getName();
+ }
+
+ public long getMaxValue () {
+  return maxValue;
+ }
+
+ // Parts of a chained value must all be present and carry the head's stamp
  public byte[] get ( long key ) {
-  Segment segment = segmentFor(key);
-  segment.acquireUninterruptibly();
-  try {
-   long segmentStart = segment.start;
-   long keysEnd = segmentStart + (segment.count << 3);
-   long keyAddr = binarySearch(key, segmentStart, keysEnd);
-
-   if ( keyAddr > 0 ) {
-    int offset = unsafe.getInt(keyAddr + OFFSET);
-    int length = unsafe.getInt(keyAddr + LENGTH);
-    byte[] result = new byte[length];
-    unsafe.copyMemory(null, segmentStart + offset, result, BYTE_ARRAY_OFFSET, length);
+  Record head = get(key, 0);
+  if ( head == null ) {
+   return null;
+  }
+  if ( head.data.length == head.total ) {
+   return head.data;
+  }
+  byte[] result = new byte[head.total];
+  System.arraycopy(head.data, 0, result, 0, head.data.length);
+  for ( int off = head.data.length, part = 1 ; off < result.length ; part++ ) {
+   Record r = get(key, part);
+   if ( r == null || r.stamp != head.stamp || r.total != head.total || r.data.length > result.length - off ) {
+    return null;
+   }
+   System.arraycopy(r.data, 0, result, off, r.data.length);
+   off += r.data.length;
+  }
+  return result;
+ }
+
+ private Record get ( long key, int part ) {
+  long ik = indexKey(key, part);
+  Segment segment = segmentFor(ik);
+  for ( int i = 0 ; i < OPTIMISTIC_TRIES ; i++ ) {
+   long stamp = segment.tryOptimisticRead();
+   if ( stamp == 0 ) {
+    break;// writer holds the segment
+   }
+   Record result = read(segment, ik, key, part);
+   if ( segment.validate(stamp) ) {
     return result;
    }
+  }
+  long stamp = segment.readLock();
+  try {
+   return read(segment, ik, key, part);
+  } finally {
+   segment.unlockRead(stamp);
+  }
+ }
 
+ // May race a writer: everything read is bounds-checked so a torn view can't leave the segment
+ private Record read ( Segment segment, long ik, long key, int part ) {
+  int pos = segment.index.get(ik);
+  if ( pos < DATA_START || pos > segmentSize - HEADER ) {
    return null;
-  } finally {
-   segment.release();
   }
+  long at = segment.start + pos;
+  int length = mem.getInt(at + LENGTH);
+  int total = mem.getInt(at + TOTAL);
+  if ( mem.getLong(at + KEY) != key || mem.getInt(at + PART) != part
+       || length < 0 || length > segmentSize - pos - HEADER || total < length ) {
+   return null;
+  }
+  byte[] data = new byte[length];
+  mem.get(at + HEADER, data, 0, length);
+  return new Record(data, mem.getInt(at + STAMP), total);
  }
 
+ // Extents are written last to first, so a reader never finds a head before its parts
  public boolean put ( long key, byte[] value ) {
   int length = value.length;
-  if ( length >= segmentSize >> 1 ) {
+  if ( length > maxValue ) {
    return false;
   }
+  int stamp = stamps.getAndIncrement();
+  int parts = Math.max(1, (length + extent - 1) / extent);
+  for ( int part = parts - 1 ; part >= 0 ; part-- ) {
+   int off = part * extent;
+   put(key, part, stamp, value, off, Math.min(extent, length - off));
+  }
+  return true;
+ }
 
-  Segment segment = segmentFor(key);
-  segment.acquireUninterruptibly(WRITE_PERMITS);
+ private void put ( long key, int part, int stamp, byte[] value, int off, int length ) {
+  long ik = indexKey(key, part);
+  Segment segment = segmentFor(ik);
+  long lock = segment.writeLock();
   try {
-   long segmentStart = segment.start;
-   int tail = segment.tail;
-   int newTail = (tail + length + 7) & ~7;
-
-   if ( newTail > segmentSize ) {
-    tail = DATA_START;
-    newTail = (tail + length + 7) & ~7;
-   }
-
-   purgeOverlappingRegion(segment, tail, newTail);
-
-   int count = segment.count;
-   if ( count == MAX_KEY_COUNT ) {
-    return false;
-   }
-
-   long keysEnd = segmentStart + (count << 3);
-   long keyAddr = binarySearch(key, segmentStart, keysEnd);
-   if ( keyAddr < 0 ) {
-    keyAddr = ~keyAddr;
-    unsafe.copyMemory(null, keyAddr, null, keyAddr + KEY_SIZE, keysEnd - keyAddr);
-    unsafe.copyMemory(null, keyAddr + KEY_SPACE, null, keyAddr + (KEY_SPACE + KEY_SIZE), keysEnd - keyAddr);
-    segment.count = count + 1;
-   }
-
-   unsafe.putLong(keyAddr, key);
-   unsafe.putInt(keyAddr + OFFSET, tail);
-   unsafe.putInt(keyAddr + LENGTH, length);
-   unsafe.copyMemory(value, BYTE_ARRAY_OFFSET, null, segmentStart + tail, length);
-
-   segment.tail = newTail;
-   return true;
+   int size = recordSize(length);
+   segment.reserve(mem, size);
+   int pos = segment.tail;
+   long at = segment.start + pos;
+   mem.putLong(at + KEY, key);
+   mem.putInt(at + LENGTH, length);
+   mem.putInt(at + PART, part);
+   mem.putInt(at + STAMP, stamp);
+   mem.putInt(at + TOTAL, value.length);
+   mem.put(at + HEADER, value, off, length);
+   segment.tail = pos + size;
+   segment.link(mem, ik, pos, part);
+   segment.store(mem);
   } finally {
-   segment.release(WRITE_PERMITS);
+   segment.unlockWrite(lock);
   }
  }
 
@@ -173,41 +293,126 @@ public class UnsafeMemoryCache {
   return segments[((int) (key ^ (key >>> 16))) & segmentMask];
  }
 
- private static long binarySearch ( long key, long low, long high ) {
-  for ( high -= KEY_SIZE ; low <= high ; ) {
-   long mid = ((low + high) >>> 1) & ~7L;
-   long midVal = unsafe.getLong(mid);
+ private static int recordSize ( int length ) {
+  return (HEADER + length + 7) & ~7;
+ }
 
-   if ( midVal < key ) {
-    low = mid + KEY_SIZE;
-   } else if ( midVal > key ) {
-    high = mid - KEY_SIZE;
-   } else {
-    return mid;
-   }
+ // Extents hash apart from their head; a clash only costs a miss, the record header holds the real key
+ private static long indexKey ( long key, int part ) {
+  if ( part == 0 ) {
+   return key;
   }
-  return ~low;
+  long h = (key + part) * 0x9E3779B97F4A7C15L;
+  return h ^ (h >>> 29);
  }
 
- private static void purgeOverlappingRegion ( Segment segment, int from, int to ) {
-  long pos = segment.start + OFFSET;
-  int count = segment.count;
-  long end = pos + (count << 3);
+ private static final class Record {
+  final byte[] data;
+  final int stamp;
+  final int total;
 
-  for ( long newPos = pos ; pos < end ; pos += KEY_SIZE ) {
-   int offset = unsafe.getInt(pos);
-   if ( offset >= from && offset < to ) {
-    count--;
-   } else {
-    if ( newPos != pos ) {
-     unsafe.putInt(newPos, offset);
-     unsafe.putInt(newPos + 4, unsafe.getInt(pos + 4));
-     unsafe.putLong(newPos - KEY_SPACE, unsafe.getLong(pos - KEY_SPACE));
+  Record ( byte[] data, int stamp, int total ) {
+   this.data = data;
+   this.stamp = stamp;
+   this.total = total;
+  }
+ }
+
+ // Growable open-addressing key -> record offset table, 0 - free
+ static final class Index {
+  private long keys[] = new long[16];
+  private int offs[] = new int[16];
+  private int size;
+
+  int get ( long key ) {
+   long k[] = keys;
+   int o[] = offs;
+   if ( k.length != o.length ) {
+    return 0;// resized under an optimistic reader
+   }
+   int m = k.length - 1;
+   for ( int i = mix(key) & m, n = 0 ; o[i] != 0 && n <= m ; i = (i + 1) & m, n++ ) {
+    if ( k[i] == key ) {
+     return o[i];
     }
-    newPos += KEY_SIZE;
    }
+   return 0;
   }
 
-  segment.count = count;
+  int put ( long key, int off ) {
+   if ( (size + 1) * 2 > keys.length ) {
+    rehash(keys.length * 2);
+   }
+   int m = keys.length - 1;
+   int i = mix(key) & m;
+   while ( offs[i] != 0 && keys[i] != key ) {
+    i = (i + 1) & m;
+   }
+   int old = offs[i];
+   if ( old == 0 ) {
+    size++;
+   }
+   keys[i] = key;
+   offs[i] = off;
+   return old;
+  }
+
+  // Only if the key still points at this record
+  boolean remove ( long key, int off ) {
+   int m = keys.length - 1;
+   int i = mix(key) & m;
+   while ( offs[i] != 0 && keys[i] != key ) {
+    i = (i + 1) & m;
+   }
+   if ( offs[i] != off ) {
+    return false;
+   }
+   offs[i] = 0;
+   size--;
+   for ( int j = (i + 1) & m ; offs[j] != 0 ; j = (j + 1) & m ) {// backward shift
+    int h = mix(keys[j]) & m;
+    if ( ((j - h) & m) >= ((j - i) & m) ) {
+     keys[i] = keys[j];
+     offs[i] = offs[j];
+     offs[j] = 0;
+     i = j;
+    }
+   }
+   if ( size * 8 < keys.length && keys.length > 16 ) {
+    rehash(keys.length / 2);
+   }
+   return true;
+  }
+
+  void clear () {
+   keys = new long[16];
+   offs = new int[16];
+   size = 0;
+  }
+
+  private void rehash ( int cap ) {
+   long ok[] = keys;
+   int oo[] = offs;
+   long nk[] = new long[cap];
+   int no[] = new int[cap];
+   int m = cap - 1;
+   for ( int i = 0 ; i < ok.length ; i++ ) {
+    if ( oo[i] != 0 ) {
+     int j = mix(ok[i]) & m;
+     while ( no[j] != 0 ) {
+      j = (j + 1) & m;
+     }
+     nk[j] = ok[i];
+     no[j] = oo[i];
+    }
+   }
+   keys = nk;
+   offs = no;
+  }
+
+  private static int mix ( long k ) {
+   k *= 0x9E3779B97F4A7C15L;
+   return (int) (k ^ (k >>> 32));
+  }
  }
 }
@@ -15,7 +15,7 @@ public class BlockIds {
 
  public BlockPos get ( int m, int i, int s ) {
   for ( BlockPos id : list ) {
-   if ( id.gX().equals(m) && id.gY().equals(i) && id.gZ().equals(s) ) {
+   if ( id.gX() == m && id.gY() == i && id.gZ() == s ) {
     return id;
    }
   }
@@ -24,7 +24,7 @@ public class BlockIds {
 
  public boolean contains ( int m, int i, int s ) {
   for ( BlockPos id : list ) {
-   if ( id.gX().equals(m) && id.gY().equals(i) && id.gZ().equals(s) ) {
+   if ( id.gX() == m && id.gY() == i && id.gZ() == s ) {
     return true;
    }
   }
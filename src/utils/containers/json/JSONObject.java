@@ -348,9 +348,8 @@ public final class JSONObject {
  }
 
  public void save ( String file ) {
-  try ( FileWriter t = new FileWriter(file) ) {
-   t.write(this.write(new StringWriter()).toString());
-   t.flush();
+  try {
+   utils.AtomicFile.write(new File(file), this.toString().getBytes("UTF-8"));
   } catch ( IOException ex ) {
    main.Main.LOG.addE(ex);
    System.out.println(ex);
@@ -0,0 +1,148 @@
+package utils.containers.map;
+
+import java.util.*;
+
+// Copy-on-write stripes: reads are lock-free, writes lock one stripe
+public final class ConcurrentLongMap<V> {
+ public final static int STRIPES = 16;
+
+ private final Stripe<V> stripes[];
+ private final int shift;
+
+ public ConcurrentLongMap () {
+  this(STRIPES);
+ }
+
+ public ConcurrentLongMap ( int stripes ) {
+  int n = 1;
+  while ( n < stripes ) {
+   n <<= 1;
+  }
+  this.stripes = stripes(n);
+  for ( int i = 0 ; i < n ; i++ ) {
+   this.stripes[i] = new Stripe<>();
+  }
+  this.shift = 32 - Integer.numberOfTrailingZeros(n);
+ }
+
+ @SuppressWarnings("unchecked")
+ private static <V> Stripe<V>[] stripes ( int n ) {
+  return (Stripe<V>[]) new Stripe<?>[n];
+ }
+
+ public V get ( long key ) {
+  return stripe(key).map.get(key);
+ }
+
+ public boolean containsKey ( long key ) {
+  return get(key) != null;
+ }
+
+ public V put ( long key, V value ) {
+  Stripe<V> s = stripe(key);
+  synchronized ( s ) {
+   LongMap<V> t = new LongMap<>(s.map);
+   V o = t.put(key, value);
+   s.map = t;
+   return o;
+  }
+ }
+
+ public V putIfAbsent ( long key, V value ) {
+  Stripe<V> s = stripe(key);
+  V o = s.map.get(key);
+  if ( o != null ) {
+   return o;
+  }
+  synchronized ( s ) {
+   o = s.map.get(key);
+   if ( o == null ) {
+    LongMap<V> t = new LongMap<>(s.map);
+    t.put(key, value);
+    s.map = t;
+   }
+   return o;
+  }
+ }
+
+ public V remove ( long key ) {
+  Stripe<V> s = stripe(key);
+  synchronized ( s ) {
+   if ( s.map.get(key) == null ) {
+    return null;
+   }
+   LongMap<V> t = new LongMap<>(s.map);
+   V o = t.remove(key);
+   s.map = t;
+   return o;
+  }
+ }
+
+ public boolean remove ( long key, V value ) {
+  Stripe<V> s = stripe(key);
+  synchronized ( s ) {
+   if ( value == null || s.map.get(key) != value ) {
+    return false;
+   }
+   LongMap<V> t = new LongMap<>(s.map);
+   t.remove(key);
+   s.map = t;
+   return true;
+  }
+ }
+
+ public int size () {
+  int t = 0;
+  for ( Stripe<V> s : stripes ) {
+   t += s.map.size();
+  }
+  return t;
+ }
+
+ public boolean isEmpty () {
+  return size() == 0;
+ }
+
+ public void clear () {
+  for ( Stripe<V> s : stripes ) {
+   synchronized ( s ) {
+    s.map = new LongMap<>();
+   }
+  }
+ }
+
+ public void forEach ( LongMap.Entry<V> f ) {
+  for ( Stripe<V> s : stripes ) {
+   s.map.forEach(f);
+  }
+ }
+
+ public List<V> values () {
+  List<V> t = new ArrayList<>();
+  for ( Stripe<V> s : stripes ) {
+   t.addAll(s.map.values());
+  }
+  return t;
+ }
+
+ public long[] keys () {
+  long t[] = new long[0];
+  for ( Stripe<V> s : stripes ) {
+   long k[] = s.map.keys();
+   if ( k.length > 0 ) {
+    int n = t.length;
+    t = Arrays.copyOf(t, n + k.length);
+    System.arraycopy(k, 0, t, n, k.length);
+   }
+  }
+  return t;
+ }
+
+ private Stripe<V> stripe ( long key ) {
+  return stripes[(int) ((LongMap.hash(key) & 0xffffffffL) >>> shift)];// high bits, the low ones index inside the stripe
+ }
+
+ private static final class Stripe<V> {
+  private volatile LongMap<V> map = new LongMap<>();
+ }
+}
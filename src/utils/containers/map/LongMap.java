@@ -0,0 +1,191 @@
+package utils.containers.map;
+
+import java.util.*;
+
+public class LongMap<V> {
+ private long keys[];
+ private Object vals[];// null - free slot
+ private int mask;
+ private int size;
+
+ public LongMap () {
+  this(16);
+ }
+
+ public LongMap ( int capacity ) {
+  int n = 16;
+  while ( n < capacity * 2 ) {
+   n <<= 1;
+  }
+  this.keys = new long[n];
+  this.vals = new Object[n];
+  this.mask = n - 1;
+ }
+
+ public LongMap ( LongMap<V> o ) {
+  this.keys = o.keys.clone();
+  this.vals = o.vals.clone();
+  this.mask = o.mask;
+  this.size = o.size;
+ }
+
+ public int size () {
+  return size;
+ }
+
+ public boolean isEmpty () {
+  return size == 0;
+ }
+
+ @SuppressWarnings("unchecked")
+ public V get ( long key ) {
+  long k[] = keys;
+  Object v[] = vals;
+  int m = mask;
+  for ( int i = hash(key) & m ; ; i = (i + 1) & m ) {
+   Object t = v[i];
+   if ( t == null ) {
+    return null;
+   }
+   if ( k[i] == key ) {
+    return (V) t;
+   }
+  }
+ }
+
+ public boolean containsKey ( long key ) {
+  return get(key) != null;
+ }
+
+ @SuppressWarnings("unchecked")
+ public V put ( long key, V value ) {
+  if ( value == null ) {
+   return remove(key);
+  }
+  int i = hash(key) & mask;
+  for ( ; vals[i] != null ; i = (i + 1) & mask ) {
+   if ( keys[i] == key ) {
+    V o = (V) vals[i];
+    vals[i] = value;
+    return o;
+   }
+  }
+  keys[i] = key;
+  vals[i] = value;
+  if ( ++size * 2 > keys.length ) {
+   rehash(keys.length * 2);
+  }
+  return null;
+ }
+
+ public V putIfAbsent ( long key, V value ) {
+  V o = get(key);
+  if ( o == null ) {
+   put(key, value);
+  }
+  return o;
+ }
+
+ @SuppressWarnings("unchecked")
+ public V remove ( long key ) {
+  int i = hash(key) & mask;
+  for ( ; vals[i] != null ; i = (i + 1) & mask ) {
+   if ( keys[i] == key ) {
+    V o = (V) vals[i];
+    shift(i);
+    size--;
+    return o;
+   }
+  }
+  return null;
+ }
+
+ public boolean remove ( long key, V value ) {
+  if ( get(key) == value && value != null ) {
+   remove(key);
+   return true;
+  }
+  return false;
+ }
+
+ public void clear () {
+  Arrays.fill(vals, null);
+  size = 0;
+ }
+
+ @SuppressWarnings("unchecked")
+ public void forEach ( Entry<V> f ) {
+  for ( int i = 0 ; i < vals.length ; i++ ) {
+   if ( vals[i] != null ) {
+    f.accept(keys[i], (V) vals[i]);
+   }
+  }
+ }
+
+ @SuppressWarnings("unchecked")
+ public List<V> values () {
+  List<V> t = new ArrayList<>(size);
+  for ( Object v : vals ) {
+   if ( v != null ) {
+    t.add((V) v);
+   }
+  }
+  return t;
+ }
+
+ public long[] keys () {
+  long t[] = new long[size];
+  int n = 0;
+  for ( int i = 0 ; i < vals.length ; i++ ) {
+   if ( vals[i] != null ) {
+    t[n++] = keys[i];
+   }
+  }
+  return t;
+ }
+
+ public static int hash ( long key ) {
+  key ^= key >>> 33;
+  key *= 0xff51afd7ed558ccdL;
+  key ^= key >>> 33;
+  return (int) key;
+ }
+
+ private void shift ( int i ) {
+  for ( int j = (i + 1) & mask ; vals[j] != null ; j = (j + 1) & mask ) {
+   int h = hash(keys[j]) & mask;
+   if ( (j > i && (h <= i || h > j)) || (j < i && (h <= i && h > j)) ) {
+    keys[i] = keys[j];
+    vals[i] = vals[j];
+    i = j;
+   }
+  }
+  vals[i] = null;
+ }
+
+ private void rehash ( int n ) {
+  long ok[] = keys;
+  Object ov[] = vals;
+  long nk[] = new long[n];
+  Object nv[] = new Object[n];
+  int m = n - 1;
+  for ( int i = 0 ; i < ov.length ; i++ ) {
+   if ( ov[i] != null ) {
+    int j = hash(ok[i]) & m;
+    while ( nv[j] != null ) {
+     j = (j + 1) & m;
+    }
+    nk[j] = ok[i];
+    nv[j] = ov[i];
+   }
+  }
+  this.keys = nk;
+  this.vals = nv;
+  this.mask = m;
+ }
+
+ public interface Entry<V> {
+
+  public void accept ( long key, V value );
+ }
+}
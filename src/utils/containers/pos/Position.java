@@ -1,12 +1,11 @@
 package utils.containers.pos;
 import java.io.Serializable;
-import java.util.Objects;
 import utils.containers.vec.Vec3;
 
 public class Position implements Serializable, Comparable {
- protected Integer x;
- protected Integer y;
- protected Integer z;
+ protected int x;
+ protected int y;
+ protected int z;
 
  public Position ( int x, int y, int z ) {
   this.x = x;
@@ -18,22 +17,18 @@ public class Position implements Serializable, Comparable {
  public int compareTo ( Object o ) {
   if ( o instanceof Position ) {
    Position t = (Position) o;
-   if ( x != null && y != null && z != null && t.x != null && t.y != null && t.z != null ) {
-    int tx = t.x.compareTo(x);
-    int ty = t.y.compareTo(y);
-    int tz = t.z.compareTo(z);
+   int tx = Integer.compare(t.x, x);
+   int ty = Integer.compare(t.y, y);
+   int tz = Integer.compare(t.z, z);
 
-    if ( tz != 0 ) {
-     return tz;
+   if ( tz != 0 ) {
+    return tz;
+   } else {
+    if ( ty != 0 ) {
+     return ty;
     } else {
-     if ( ty != 0 ) {
-      return ty;
-     } else {
-      return tx;
-     }
+     return tx;
     }
-   } else {
-    main.Main.LOG.addE("One of the dimensions is null");
    }
   } else {
    main.Main.LOG.addE("Parameter is not ChunkId");
@@ -44,9 +39,9 @@ public class Position implements Serializable, Comparable {
  @Override
  public int hashCode () {
   int r = 17;
-  r = 37 * r + (x != null ? x.hashCode() * 3 : 0);
-  r = 37 * r + (y != null ? y.hashCode() * 3 : 0);
-  r = 37 * r + (z != null ? z.hashCode() * 3 : 0);
+  r = 37 * r + x * 3;
+  r = 37 * r + y * 3;
+  r = 37 * r + z * 3;
   return r;
  }
 
@@ -59,7 +54,7 @@ public class Position implements Serializable, Comparable {
    return false;
   }
   Position t = (Position) obj;
-  return Objects.equals(t.x, x) && Objects.equals(t.y, y) && Objects.equals(t.z, z);
+  return t.x == x && t.y == y && t.z == z;
  }
 
  @Override
@@ -67,27 +62,27 @@ public class Position implements Serializable, Comparable {
   return "Chunk id: x=" + x + "; y=" + y + "; z=" + z + ";";
  }
 
- public Integer gX () {
+ public int gX () {
   return x;
  }
 
- public Integer gY () {
+ public int gY () {
   return y;
  }
 
- public Integer gZ () {
+ public int gZ () {
   return z;
  }
 
- public void sX ( Integer x ) {
+ public void sX ( int x ) {
   this.x = x;
  }
 
- public void sY ( Integer y ) {
+ public void sY ( int y ) {
   this.y = y;
  }
 
- public void sZ ( Integer z ) {
+ public void sZ ( int z ) {
   this.z = z;
  }
 
@@ -106,4 +101,25 @@ public class Position implements Serializable, Comparable {
   this.y = o.gY();
   this.z = o.gZ();
  }
+
+ public long key () {
+  return key(x, y, z);
+ }
+
+ // x and y - 28 bit signed, z - 8 bit unsigned
+ public static long key ( int x, int y, int z ) {
+  return ((long) (x & 0xFFFFFFF) << 36) | ((long) (y & 0xFFFFFFF) << 8) | (z & 0xFF);
+ }
+
+ public static int keyX ( long key ) {
+  return (int) (key >> 36);
+ }
+
+ public static int keyY ( long key ) {
+  return (int) (key << 28 >> 36);
+ }
+
+ public static int keyZ ( long key ) {
+  return (int) (key & 0xFF);
+ }
 }
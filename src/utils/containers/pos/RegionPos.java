@@ -1,8 +1,6 @@
 package utils.containers.pos;
-import java.util.*;
 
 public class RegionPos extends Position {
- protected final Set<ChunkPos> set = new TreeSet<>();
  public final static RegionPos nullP = new RegionPos(0, 0, -1);
 
  private RegionPos ( int x, int y, int z ) {
@@ -13,16 +11,20 @@ public class RegionPos extends Position {
   super(x, y, 0);
  }
 
- public void addChunk ( ChunkPos pos ) {
-  this.set.add(pos);
+ public static RegionPos of ( ChunkPos pos ) {
+  return new RegionPos(pos.gX() >> 3, pos.gY() >> 3);
+ }
+
+ public static RegionPos of ( long key ) {
+  return new RegionPos(keyX(key), keyY(key));
  }
 
  public boolean isContains ( ChunkPos pos ) {
-  return this.set.contains(pos);
+  return (pos.gX() >> 3) == x && (pos.gY() >> 3) == y;
  }
 
  public boolean isNull () {
-  return z.equals(-1);
+  return z == -1;
  }
 
  @Override